@@ -0,0 +1,89 @@
+package com.morchkovalski.notes;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+// tracks whether the text of an EditText differs from its original text, without copying or
+// comparing the whole text on every change. the text before the edited range always matches the
+// beginning of the original and the text after it matches the end, so only the edited range has
+// to be compared, and only when the lengths are the same
+public class EditTracker implements TextWatcher {
+
+    public interface OnEditedChangeListener {
+        // called when the text becomes different from the original, or the same again
+        void onEditedChanged(boolean edited);
+    }
+
+    private final String original;
+    private final OnEditedChangeListener listener;
+    // the range of the current text that may differ from the original, -1 if none. the range can
+    // be empty if text was only deleted
+    private int rangeStart = -1;
+    private int rangeEnd = -1;
+    private boolean edited = false;
+
+    public EditTracker(String original, OnEditedChangeListener listener) {
+        this.original = original;
+        this.listener = listener;
+    }
+
+    public boolean isEdited() {
+        return edited;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (rangeStart == -1) {
+            rangeStart = start;
+            rangeEnd = start + count;
+        } else {
+            rangeStart = Math.min(rangeStart, start);
+            // the end of the range moves with the text after the change
+            rangeEnd = Math.max(rangeEnd, start + before) + count - before;
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        boolean nowEdited = s.length() != original.length() || !rangeMatches(s);
+        if (!nowEdited) {
+            // the whole text matches, nothing has to be compared after the next change
+            rangeStart = rangeEnd = -1;
+        }
+        if (nowEdited != edited) {
+            edited = nowEdited;
+            listener.onEditedChanged(edited);
+        }
+    }
+
+    // compares the edited range with the same range of the original, which has the same length.
+    // if the range is the whole text (e.g. after it was restored or replaced), the hash of the
+    // original, which String caches, rules out most differences without reading it
+    private boolean rangeMatches(CharSequence s) {
+        int start = Math.min(Math.max(rangeStart, 0), s.length());
+        int end = Math.min(Math.max(rangeEnd, start), s.length());
+        if (start == 0 && end == s.length() && hash(s) != original.hashCode()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != original.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the same hash as String.hashCode, without making a String
+    private static int hash(CharSequence s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+}
@@ -0,0 +1,756 @@
+package com.morchkovalski.notes;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// stores the Note list as an append-only log of mutation records, so the cost of a write depends
+// on the size of the change and not on the number of notes. the log is replayed on load, and
+// rewritten as a plain list of inserts (compacted) on a background thread once it grows too big.
+// trashing and restoring a note only logs its id, the note itself is taken from the earlier records.
+// the records of every write go into a checksummed frame that is synced to disk before the write
+// returns, so a crash loses either a whole write or nothing, and never leaves a broken note behind
+public class JournalNoteStore implements NoteStore {
+
+    public static final String NAME = "journal";
+    public static final String JOURNAL_FILE = "notes.journal";
+
+    private static final String TAG = "JournalNoteStore";
+
+    // the log is never compacted while it's smaller than this
+    private static final long COMPACT_MIN_SIZE = 256 * 1024;
+    // set in the op of an INSERT or REPLACE record whose text is compressed
+    private static final int TEXT_DEFLATED = 0x80;
+    // set in the op of an INSERT or REPLACE record that has the creation date of the note. records
+    // written before notes had one don't, the note is created when that version was saved
+    private static final int HAS_DATE_CREATED = 0x40;
+    private static final int OP_FLAGS = TEXT_DEFLATED | HAS_DATE_CREATED;
+    // the log starts with a header: MAGIC (4 bytes), FORMAT_VERSION (4 bytes), checkpoint (8 bytes)
+    // and the CRC32 of those (4 bytes). the checkpoint is the offset up to which the frames were
+    // already checked, see recover. logs written before there were frames have no header
+    private static final int MAGIC = 0x4e4a524e;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    // every frame is the length of its records (4 bytes) and their CRC32 (4 bytes), followed by the
+    // records
+    private static final int FRAME_HEADER_SIZE = 8;
+    // snapshots are split into frames of about this many bytes, so they're never built in memory
+    // as a whole
+    private static final int SNAPSHOT_FRAME_SIZE = 256 * 1024;
+
+    private final File file;
+    private final ExecutorService compactExecutor = Executors.newSingleThreadExecutor();
+
+    private FileOutputStream out = null;
+    // current size of the log file in bytes
+    private long size = 0;
+    // size of the log right after it was last loaded or compacted
+    private long baseSize = 0;
+    private boolean compacting = false;
+    // incremented whenever the log is replaced, so that a compaction started before that is dropped
+    private int generation = 0;
+    // ids of the trashed notes. a compacted log only has the notes in the list, so the log isn't
+    // compacted while any note could still be restored
+    private final Set<Long> trashed = new HashSet<>();
+    // the ids of the notes in list order, and the offset of the record with the current version of
+    // every note in the list or trashed since the app started, so that single notes are read without
+    // replaying the log. null until the log is loaded
+    private List<Long> ids = null;
+    private Map<Long, Long> recordOffsets = null;
+
+    public JournalNoteStore(File dir) {
+        file = new File(dir, JOURNAL_FILE);
+    }
+
+    @Override
+    public boolean exists() {
+        return file.exists();
+    }
+
+    // the whole log has to be read anyway, so the notes are always loaded with their text. the
+    // log is only checked for a broken end the first time, later loads just replay it
+    @Override
+    public synchronized List<Note> load(boolean withText) throws IOException {
+        List<Note> noteList = new ArrayList<>();
+        if (ids != null) {
+            replay(noteList);
+            return noteList;
+        }
+        if (!file.exists()) {
+            size = baseSize = 0;
+            ids = new ArrayList<>();
+            recordOffsets = new HashMap<>();
+            return noteList;
+        }
+        long checkpoint = readCheckpoint();
+        if (checkpoint == -1) {
+            // written before there were frames, rewritten in the current format once
+            noteList = loadUnframed();
+            replaceAll(noteList);
+            return noteList;
+        }
+        size = baseSize = recover(checkpoint);
+        int records = replay(noteList);
+        // notes left in the trash by the previous run aren't in the list, and are dropped by the
+        // compaction. the ones trashed since the app started still have to be restorable
+        if (trashed.isEmpty() && records > 2 * noteList.size() && size > COMPACT_MIN_SIZE) {
+            // most of the log is history that doesn't affect the current list anymore
+            startCompaction(noteList);
+        }
+        return noteList;
+    }
+
+    // returns the checkpoint in the header, 0 if the header is broken, or -1 if the log has no
+    // header because it was written before there were frames
+    private long readCheckpoint() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while (length < HEADER_SIZE && (n = in.read(header, length, HEADER_SIZE - length)) != -1) {
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (length < 4 || buffer.getInt(0) != MAGIC) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, HEADER_SIZE - 4);
+        if (length < HEADER_SIZE || buffer.getInt(HEADER_SIZE - 4) != (int) crc.getValue()) {
+            // the header was only partly written, the frames are all checked
+            return 0;
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unknown journal version " + buffer.getInt(4));
+        }
+        return buffer.getLong(8);
+    }
+
+    private static byte[] header(long checkpoint) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(checkpoint);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        header.putInt((int) crc.getValue());
+        return header.array();
+    }
+
+    // checks the frames after the checkpoint and cuts the log off after the last complete one,
+    // then moves the checkpoint to the end. the frames before the checkpoint were checked by an
+    // earlier load (or written by a snapshot), so recovering after a crash only reads what was
+    // written since the app last started, however long the log is. returns the end of the log
+    private long recover(long checkpoint) throws IOException {
+        long length = file.length();
+        long valid = checkpoint >= HEADER_SIZE && checkpoint <= length ? checkpoint : HEADER_SIZE;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] buffer = new byte[8192];
+            CRC32 crc = new CRC32();
+            if (length - valid >= FRAME_HEADER_SIZE) {
+                skipFully(in, valid);
+            }
+            while (length - valid >= FRAME_HEADER_SIZE) {
+                int payloadLength = in.readInt();
+                int checksum = in.readInt();
+                if (payloadLength < 0 || payloadLength > length - valid - FRAME_HEADER_SIZE) {
+                    break;
+                }
+                crc.reset();
+                for (int remaining = payloadLength; remaining > 0; ) {
+                    int n = Math.min(remaining, buffer.length);
+                    in.readFully(buffer, 0, n);
+                    crc.update(buffer, 0, n);
+                    remaining -= n;
+                }
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                valid += FRAME_HEADER_SIZE + payloadLength;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid == checkpoint && valid == length) {
+            return valid;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (valid < length) {
+                // the last write was cut short by a crash (or is garbage)
+                Log.w(TAG, "dropping " + (length - valid) + " bytes of broken records at offset " + valid);
+                raf.setLength(valid);
+            }
+            raf.seek(0);
+            raf.write(header(valid));
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        return valid;
+    }
+
+    // applies the frames up to the end of the log (see recover) to the list, and returns the number
+    // of records applied. the ids and record offsets are set to the ones of the list
+    private int replay(List<Note> noteList) throws IOException {
+        int records = 0;
+        // the notes trashed by the records read so far, by id
+        Map<Long, Note> trash = new HashMap<>();
+        Map<Long, Long> offsets = new HashMap<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            skipFully(in, HEADER_SIZE);
+            for (long offset = HEADER_SIZE; offset < size; ) {
+                int payloadLength = in.readInt();
+                // the checksum was checked by recover, or when the frame was written
+                in.readInt();
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                ByteArrayInputStream bytes = new ByteArrayInputStream(payload);
+                DataInputStream frame = new DataInputStream(bytes);
+                while (bytes.available() > 0) {
+                    long recordOffset = offset + FRAME_HEADER_SIZE + payloadLength - bytes.available();
+                    NoteMutation mutation = readMutation(frame.read(), frame, noteList, trash);
+                    if (mutation.type == NoteMutation.INSERT || mutation.type == NoteMutation.REPLACE) {
+                        offsets.put(mutation.note.getId(), recordOffset);
+                    }
+                    mutation.applyTo(noteList);
+                    records++;
+                }
+                offset += FRAME_HEADER_SIZE + payloadLength;
+            }
+        } catch (EOFException | IndexOutOfBoundsException | IllegalStateException e) {
+            // the frame is complete, so the records in it were written wrong. dropping them could
+            // lose any note, so the log isn't loaded
+            throw new IOException("broken record in " + file, e);
+        } finally {
+            in.close();
+        }
+        ids = new ArrayList<>(noteList.size());
+        recordOffsets = new HashMap<>(noteList.size() * 2);
+        for (Note note : noteList) {
+            ids.add(note.getId());
+            recordOffsets.put(note.getId(), offsets.get(note.getId()));
+        }
+        return records;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    // reads a log written before there were frames. a record that was only partly written (or is
+    // garbage) is dropped together with everything after it
+    private List<Note> loadUnframed() throws IOException {
+        List<Note> noteList = new ArrayList<>();
+        Map<Long, Note> trash = new HashMap<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            for (int op = in.read(); op != -1; op = in.read()) {
+                readMutation(op, in, noteList, trash).applyTo(noteList);
+            }
+        } catch (EOFException | IndexOutOfBoundsException | IllegalStateException e) {
+            Log.w(TAG, "dropping a broken record", e);
+        } finally {
+            in.close();
+        }
+        return noteList;
+    }
+
+    @Override
+    public List<Note> loadWithoutContents() throws IOException {
+        return load(false);
+    }
+
+    // reads the records of the notes directly, the log is only replayed if it wasn't loaded yet
+    @Override
+    public synchronized List<Note> load(long[] ids, boolean withText) throws IOException {
+        if (recordOffsets == null) {
+            load(true);
+        }
+        List<Note> noteList = new ArrayList<>(ids.length);
+        RandomAccessFile raf = null;
+        try {
+            for (long id : ids) {
+                Long offset = recordOffsets.get(id);
+                if (offset != null && !trashed.contains(id)) {
+                    if (raf == null) {
+                        raf = new RandomAccessFile(file, "r");
+                    }
+                    noteList.add(readNote(raf, offset));
+                }
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized String loadText(long id) throws IOException {
+        List<Note> loaded = load(new long[] { id }, true);
+        if (loaded.isEmpty()) {
+            throw new IOException("no note with id " + id);
+        }
+        return loaded.get(0).getText();
+    }
+
+    // reads the INSERT or REPLACE record at the specified offset
+    private Note readNote(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+        try {
+            int op = data.read();
+            int type = op & ~OP_FLAGS;
+            if (type != NoteMutation.INSERT && type != NoteMutation.REPLACE) {
+                throw new IllegalStateException("unexpected record type " + type);
+            }
+            return readMutation(op, data, null, null).note;
+        } catch (EOFException | IllegalStateException e) {
+            throw new IOException("broken record at offset " + offset + " in " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        long start = NoteMetrics.start();
+        FrameBuffer frame = new FrameBuffer();
+        DataOutputStream data = new DataOutputStream(frame);
+        // the trash is only changed once the write succeeds
+        Set<Long> newTrashed = new HashSet<>(trashed);
+        // the offsets of the records within the frame, in the order of the mutations
+        long[] frameOffsets = new long[mutations.size()];
+        for (int i = 0; i < mutations.size(); i++) {
+            NoteMutation mutation = mutations.get(i);
+            if (mutation.type == NoteMutation.TRASH) {
+                newTrashed.add(mutation.note.getId());
+            } else if (mutation.type == NoteMutation.RESTORE && !newTrashed.remove(mutation.note.getId())) {
+                // the note was trashed before a replaceAll, so the log doesn't have it anymore and
+                // it's logged again as a whole. the notes of a pending replaceAll all have their
+                // text (see NoteRepository.setAll)
+                if (!mutation.note.hasText()) {
+                    throw new IOException("note " + mutation.note.getId() + " isn't in the log anymore");
+                }
+                mutation = NoteMutation.insert(mutation.position, mutation.note);
+            } else if (mutation.type == NoteMutation.PURGE) {
+                newTrashed.clear();
+            }
+            frameOffsets[i] = frame.size();
+            writeMutation(mutation, data);
+        }
+        NoteMetrics.SERIALIZE_JOURNAL.record(start);
+        append(frame);
+        if (ids != null) {
+            long frameStart = size - frame.size();
+            Set<Long> trash = new HashSet<>(trashed);
+            for (int i = 0; i < mutations.size(); i++) {
+                track(mutations.get(i), frameStart + frameOffsets[i], trash);
+            }
+        }
+        trashed.clear();
+        trashed.addAll(newTrashed);
+        if (trashed.isEmpty() && size > COMPACT_MIN_SIZE && size > 2 * baseSize) {
+            startCompaction(noteList);
+        }
+    }
+
+    // applies a written mutation to the ids and record offsets. recordOffset is the offset of its
+    // record, which for a RESTORE is only used if it was written as an INSERT (see apply). trash has
+    // the ids of the notes trashed before the mutation, and is updated for it
+    private void track(NoteMutation mutation, long recordOffset, Set<Long> trash) {
+        switch (mutation.type) {
+            case NoteMutation.INSERT:
+                ids.add(mutation.position, mutation.note.getId());
+                recordOffsets.put(mutation.note.getId(), recordOffset);
+                break;
+            case NoteMutation.REPLACE: {
+                Long replaced = ids.set(mutation.position, mutation.note.getId());
+                recordOffsets.remove(replaced);
+                recordOffsets.put(mutation.note.getId(), recordOffset);
+                break;
+            }
+            case NoteMutation.DELETE:
+                recordOffsets.remove(ids.remove(mutation.position));
+                break;
+            case NoteMutation.MOVE:
+                ids.add(mutation.to, ids.remove(mutation.position));
+                break;
+            case NoteMutation.TRASH:
+                // the record is kept for the restore
+                ids.remove(mutation.position);
+                trash.add(mutation.note.getId());
+                break;
+            case NoteMutation.RESTORE:
+                ids.add(mutation.position, mutation.note.getId());
+                if (!trash.remove(mutation.note.getId())) {
+                    recordOffsets.put(mutation.note.getId(), recordOffset);
+                }
+                break;
+            case NoteMutation.PURGE:
+                for (Long id : trash) {
+                    recordOffsets.remove(id);
+                }
+                trash.clear();
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void replaceAll(List<Note> noteList) throws IOException {
+        closeOutput();
+        generation++;
+        // the old log stays in place until the new one is complete
+        File tmp = new File(file.getPath() + ".tmp");
+        Map<Long, Long> offsets = new HashMap<>(noteList.size() * 2);
+        try {
+            writeSnapshot(noteList, tmp, offsets);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        size = baseSize = file.length();
+        trashed.clear();
+        ids = new ArrayList<>(noteList.size());
+        for (Note note : noteList) {
+            ids.add(note.getId());
+        }
+        recordOffsets = offsets;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        closeOutput();
+        generation++;
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't delete " + file);
+        }
+        size = baseSize = 0;
+        trashed.clear();
+        ids = new ArrayList<>();
+        recordOffsets = new HashMap<>();
+    }
+
+    // returns the number of bytes currently in the log
+    public synchronized long size() {
+        return size;
+    }
+
+    // writes the frame to the end of the log in a single write and syncs it, so that it's on disk
+    // when this returns. the repository writes everything changed since its last write with a
+    // single apply, so changes made together (a bulk delete, an undo, an import batch) share one
+    // sync. if that fails, whatever part of the frame made it to the file is cut off again, so
+    // that later frames aren't appended after a broken one
+    private void append(FrameBuffer frame) throws IOException {
+        long written = frame.size();
+        try {
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+            if (size == 0) {
+                // a new log
+                out.write(header(HEADER_SIZE));
+                written += HEADER_SIZE;
+            }
+            frame.writeTo(out);
+            long start = NoteMetrics.start();
+            out.getFD().sync();
+            NoteMetrics.SYNC_JOURNAL.record(start);
+        } catch (IOException e) {
+            try {
+                closeOutput();
+            } catch (IOException ignored) {
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+            } finally {
+                raf.close();
+            }
+            throw e;
+        }
+        size += written;
+    }
+
+    private void closeOutput() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    // compacts the log in the background. the list is copied together with the current log size,
+    // records appended while the copy is being written out are carried over to the compacted log
+    private void startCompaction(List<Note> noteList) {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        final List<Note> snapshot = new ArrayList<>(noteList);
+        final long snapshotSize = size;
+        final int snapshotGeneration = generation;
+        compactExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(snapshot, snapshotSize, snapshotGeneration);
+            }
+        });
+    }
+
+    private void compact(List<Note> snapshot, long snapshotSize, int snapshotGeneration) {
+        File tmp = new File(file.getPath() + ".compact");
+        Map<Long, Long> offsets = new HashMap<>(snapshot.size() * 2);
+        try {
+            writeSnapshot(snapshot, tmp, offsets);
+            synchronized (this) {
+                if (generation != snapshotGeneration) {
+                    // the log was replaced while the snapshot was being written
+                    tmp.delete();
+                    return;
+                }
+                closeOutput();
+                long snapshotEnd = tmp.length();
+                copyTail(snapshotSize, tmp);
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("can't rename " + tmp + " to " + file);
+                }
+                size = baseSize = file.length();
+                if (recordOffsets != null) {
+                    // the records written since the snapshot moved along with the tail, the others
+                    // are taken from the snapshot
+                    for (Map.Entry<Long, Long> entry : recordOffsets.entrySet()) {
+                        long offset = entry.getValue();
+                        entry.setValue(offset >= snapshotSize ? offset - snapshotSize + snapshotEnd : offsets.get(entry.getKey()));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "compaction failed", e);
+            tmp.delete();
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    // appends everything in the log after the specified offset to the end of dest and syncs it
+    private void copyTail(long offset, File dest) throws IOException {
+        RandomAccessFile src = new RandomAccessFile(file, "r");
+        FileOutputStream destOut = new FileOutputStream(dest, true);
+        try {
+            src.seek(offset);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = src.read(buf)) != -1) {
+                destOut.write(buf, 0, n);
+            }
+            destOut.getFD().sync();
+        } finally {
+            src.close();
+            destOut.close();
+        }
+    }
+
+    // writes the whole list as a sequence of insert records and syncs it. the checkpoint in the
+    // header is the end of the snapshot, since its frames don't need to be checked on load. the
+    // offsets of the records are put into recordOffsets by note id
+    private static void writeSnapshot(List<Note> noteList, File dest, Map<Long, Long> recordOffsets) throws IOException {
+        FileOutputStream out = new FileOutputStream(dest);
+        try {
+            out.write(header(HEADER_SIZE));
+            long length = HEADER_SIZE;
+            FrameBuffer frame = new FrameBuffer();
+            DataOutputStream data = new DataOutputStream(frame);
+            for (int i = 0; i < noteList.size(); i++) {
+                recordOffsets.put(noteList.get(i).getId(), length + frame.size());
+                writeMutation(NoteMutation.insert(i, noteList.get(i)), data);
+                if (frame.size() >= SNAPSHOT_FRAME_SIZE || i == noteList.size() - 1) {
+                    frame.writeTo(out);
+                    length += frame.size();
+                    frame.reset();
+                }
+            }
+            out.getChannel().write(ByteBuffer.wrap(header(length)), 0);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    // record layout: op (1 byte), position (4 bytes), then
+    //   INSERT, REPLACE: id (8 bytes), date (8 bytes), creation date (8 bytes, if the op has
+    //     HAS_DATE_CREATED set), title, text. if the op has TEXT_DEFLATED set, the text is compressed
+    //     (see TextCompression), stored as its length (4 bytes) followed by the compressed bytes
+    //   DELETE: nothing
+    //   MOVE: target position (4 bytes)
+    //   TRASH, RESTORE: id (8 bytes)
+    //   PURGE: nothing (the position is unused)
+    // strings are stored as their UTF-8 length (4 bytes) followed by the UTF-8 bytes
+    private static void writeMutation(NoteMutation mutation, DataOutputStream data) throws IOException {
+        int op = mutation.type;
+        byte[] deflated = null;
+        if (mutation.type == NoteMutation.INSERT || mutation.type == NoteMutation.REPLACE) {
+            deflated = TextCompression.compress(mutation.note.getText());
+            op |= deflated != null ? HAS_DATE_CREATED | TEXT_DEFLATED : HAS_DATE_CREATED;
+        }
+        data.writeByte(op);
+        data.writeInt(mutation.position);
+        switch (mutation.type) {
+            case NoteMutation.INSERT:
+            case NoteMutation.REPLACE:
+                data.writeLong(mutation.note.getId());
+                data.writeLong(mutation.note.getDateMillis());
+                data.writeLong(mutation.note.getDateCreatedMillis());
+                writeString(mutation.note.getTitle(), data);
+                if (deflated != null) {
+                    data.writeInt(deflated.length);
+                    data.write(deflated);
+                } else {
+                    writeString(mutation.note.getText(), data);
+                }
+                break;
+            case NoteMutation.MOVE:
+                data.writeInt(mutation.to);
+                break;
+            case NoteMutation.TRASH:
+            case NoteMutation.RESTORE:
+                data.writeLong(mutation.note.getId());
+                break;
+        }
+    }
+
+    // reads a record written by writeMutation. noteList is the list before the record is applied,
+    // and trash has the notes trashed by the previous records, which is updated for this one
+    private static NoteMutation readMutation(int op, DataInputStream data, List<Note> noteList, Map<Long, Note> trash) throws IOException {
+        int type = op & ~OP_FLAGS;
+        int position = data.readInt();
+        switch (type) {
+            case NoteMutation.INSERT:
+            case NoteMutation.REPLACE:
+                long id = data.readLong();
+                Date date = new Date(data.readLong());
+                Date dateCreated = (op & HAS_DATE_CREATED) != 0 ? new Date(data.readLong()) : date;
+                String title = readString(data);
+                String text = (op & TEXT_DEFLATED) != 0 ? readDeflated(data) : readString(data);
+                Note note = new Note(id, text, title, dateCreated, date);
+                return type == NoteMutation.INSERT ? NoteMutation.insert(position, note) : NoteMutation.replace(position, note);
+            case NoteMutation.DELETE:
+                return NoteMutation.delete(position);
+            case NoteMutation.MOVE:
+                return NoteMutation.move(position, data.readInt());
+            case NoteMutation.TRASH: {
+                Note trashed = noteList.get(position);
+                if (trashed.getId() != data.readLong()) {
+                    throw new IllegalStateException("the trashed note isn't at position " + position);
+                }
+                trash.put(trashed.getId(), trashed);
+                return NoteMutation.trash(position, trashed);
+            }
+            case NoteMutation.RESTORE: {
+                Note restored = trash.remove(data.readLong());
+                if (restored == null) {
+                    throw new IllegalStateException("the restored note isn't in the trash");
+                }
+                return NoteMutation.restore(position, restored);
+            }
+            case NoteMutation.PURGE:
+                trash.clear();
+                return NoteMutation.purge();
+            default:
+                throw new IllegalStateException("unknown record type " + type);
+        }
+    }
+
+    private static void writeString(String s, DataOutputStream data) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IllegalStateException("negative string length");
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String readDeflated(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IllegalStateException("negative string length");
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        try {
+            return TextCompression.decompress(bytes);
+        } catch (IOException e) {
+            // a garbage record, dropped like any other
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the records of a frame, written after room for the frame header, which is filled in when the
+    // frame is written out. size is the size of the whole frame
+    private static class FrameBuffer extends ByteArrayOutputStream {
+
+        FrameBuffer() {
+            super(8192);
+            count = FRAME_HEADER_SIZE;
+        }
+
+        @Override
+        public synchronized void reset() {
+            count = FRAME_HEADER_SIZE;
+        }
+
+        @Override
+        public synchronized void writeTo(OutputStream out) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(buf, FRAME_HEADER_SIZE, count - FRAME_HEADER_SIZE);
+            ByteBuffer.wrap(buf).putInt(count - FRAME_HEADER_SIZE).putInt((int) crc.getValue());
+            out.write(buf, 0, count);
+        }
+    }
+
+}
@@ -5,6 +5,10 @@ import android.support.v4.app.FragmentManager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
 public class MainActivity extends AppCompatActivity implements NoteListFragment.OnNoteListFragmentActionListener, NoteFragment.OnNoteFragmentActionListener, FragmentManager.OnBackStackChangedListener {
 
     private NoteListFragment noteListFragment;
@@ -29,6 +33,27 @@ public class MainActivity extends AppCompatActivity implements NoteListFragment.
         }
 
         showBackButton();
+        StartupTrace.activityCreated(this);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // the process may be killed once the activity is stopped, so start writing queued note
+        // changes now instead of after the usual delay. the main thread doesn't wait for the write,
+        // the draft of an open note keeps its changes until they are written (see NoteDraft)
+        Note.flush(this, false);
+    }
+
+    // adds the storage metrics to "adb shell dumpsys activity com.morchkovalski.notes". with the
+    // argument --reset-metrics they are cleared after being printed
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        NoteMetrics.dump(prefix, writer);
+        if (args != null && Arrays.asList(args).contains("--reset-metrics")) {
+            NoteMetrics.reset();
+        }
     }
 
     @Override
@@ -55,20 +80,19 @@ public class MainActivity extends AppCompatActivity implements NoteListFragment.
     }
 
     @Override
-    public void onNoteAdd() {
-        // new note is always added on top, so the index is 0
-        showNote(0);
+    public void onNoteAdd(long id) {
+        showNote(id);
     }
 
     @Override
-    public void onNoteShow(int position) {
-        showNote(position);
+    public void onNoteShow(long id) {
+        showNote(id);
     }
 
-    void showNote(int position) {
+    void showNote(long id) {
         // show the note editor fragment for the specified note
         FragmentManager fm = getSupportFragmentManager();
-        NoteFragment fragment = NoteFragment.newInstance(position);
+        NoteFragment fragment = NoteFragment.newInstance(id);
         fm.beginTransaction()
                 .setCustomAnimations(R.anim.enter_from_right, R.anim.exit_to_right, R.anim.enter_from_right, R.anim.exit_to_right)
                 .replace(R.id.content_main, fragment, NoteFragment.TAG)
@@ -78,14 +102,14 @@ public class MainActivity extends AppCompatActivity implements NoteListFragment.
 
     // only called when a note is saved in editor view
     @Override
-    public void onNoteFragmentSaved(int position) {
-        noteListFragment.onNoteFragmentSaved(position);
+    public void onNoteFragmentSaved(long id) {
+        noteListFragment.onNoteFragmentSaved(id);
     }
 
     // only called when a note is deleted in editor view
     @Override
-    public void onNoteFragmentRemove(int position) {
-        noteListFragment.onNoteFragmentRemove(position);
+    public void onNoteFragmentRemove(long id) {
+        noteListFragment.onNoteFragmentRemove(id);
     }
 
     @Override
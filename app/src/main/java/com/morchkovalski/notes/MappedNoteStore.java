@@ -0,0 +1,552 @@
+package com.morchkovalski.notes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// stores the Note list in a binary file that is read through a memory mapping, so a note is read
+// with a single seek and decode instead of parsing the whole list. the file is laid out as
+//   header: magic (4 bytes), version (4 bytes), offset of the current table (8 bytes)
+//   records: id (8 bytes), date (8 bytes), creation date (8 bytes), flags (1 byte), title, text
+//   table: note count (4 bytes), then the offset of every note's record in list order (8 bytes each),
+//     preceded by up to 7 bytes of padding
+// strings are stored as their UTF-8 length (4 bytes) followed by the UTF-8 bytes. if the flags have
+// RECORD_TEXT_DEFLATED set, the text is compressed (see TextCompression) and stored as its length
+// followed by the compressed bytes. version 1 files have no flags byte and version 2 files no
+// creation date (their notes are created when they were last saved). records are appended to older
+// files in their format until the file is rewritten, which happens with the next write that doesn't
+// leave any notes in the trash. changed notes are appended as new records followed by a new table,
+// and the header is only pointed at the new table once both are written, so an interrupted write
+// leaves the previous list intact. the file is rewritten without the unused records once they take
+// up most of it. a trashed note is only left out of the table, and restoring it puts its old record
+// back in. a write that only replaces a single note doesn't change the order, so its record is
+// appended and the note's offset in the table is then overwritten in place. the table is aligned so
+// that this offset is never split across two disk sectors
+public class MappedNoteStore implements NoteStore {
+
+    public static final String NAME = "mapped";
+    public static final String DATA_FILE = "notes.bin";
+
+    private static final int MAGIC = 0x4e4f5442;
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 16;
+    // offset of the table offset within the header
+    private static final int HEADER_TABLE = 8;
+    // the file is never compacted while it's smaller than this
+    private static final long COMPACT_MIN_SIZE = 256 * 1024;
+    private static final int RECORD_TEXT_DEFLATED = 1;
+
+    private final File file;
+
+    // null until the file is mapped for the first time, or if there is no file
+    private MappedByteBuffer buffer = null;
+    // format version of the mapped file
+    private int version = FORMAT_VERSION;
+    // offsets of the records in list order, and the same offsets by note id
+    private long[] offsets = new long[0];
+    private Map<Long, Long> offsetsById = new HashMap<>();
+    // offset of the current table, and the size of the header, the records in the table and the
+    // table, which the file size is compared to when deciding whether to compact it
+    private long table = 0;
+    private long liveSize = 0;
+    // offsets of the records of trashed notes by id, and the trashed notes that have no record yet
+    // (because they were trashed in the same write that added them). the file isn't compacted while
+    // any of these can still be restored
+    private Map<Long, Long> trashedOffsets = new HashMap<>();
+    private Map<Long, Note> trashedNotes = new HashMap<>();
+
+    public MappedNoteStore(File dir) {
+        file = new File(dir, DATA_FILE);
+    }
+
+    @Override
+    public boolean exists() {
+        return file.exists();
+    }
+
+    // maps the file and reads its table, unless that was already done
+    private void open() throws IOException {
+        if (buffer != null || !file.exists()) {
+            return;
+        }
+        map();
+        try {
+            version = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || version < 1 || version > FORMAT_VERSION) {
+                throw new IOException(file + " isn't a note file");
+            }
+            table = buffer.getLong(HEADER_TABLE);
+            int position = toPosition(table);
+            offsets = new long[buffer.getInt(position)];
+            offsetsById = new HashMap<>(offsets.length * 2);
+            liveSize = HEADER_SIZE + 4 + 8L * offsets.length;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getLong(position + 4 + i * 8);
+                offsetsById.put(buffer.getLong(toPosition(offsets[i])), offsets[i]);
+                liveSize += recordSize(offsets[i]);
+            }
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            close();
+            throw new IOException("can't parse " + file, e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void map() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to be mapped");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void close() {
+        buffer = null;
+        version = FORMAT_VERSION;
+        offsets = new long[0];
+        offsetsById = new HashMap<>();
+        table = 0;
+        liveSize = 0;
+        trashedOffsets = new HashMap<>();
+        trashedNotes = new HashMap<>();
+    }
+
+    private int toPosition(long offset) throws IOException {
+        if (offset < HEADER_SIZE || offset >= buffer.limit()) {
+            throw new IOException("offset " + offset + " is outside of " + file);
+        }
+        return (int) offset;
+    }
+
+    @Override
+    public synchronized List<Note> load(boolean withText) throws IOException {
+        open();
+        List<Note> noteList = new ArrayList<>(offsets.length);
+        for (long offset : offsets) {
+            noteList.add(readNote(offset, withText));
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized List<Note> loadWithoutContents() throws IOException {
+        open();
+        List<Note> noteList = new ArrayList<>(offsets.length);
+        for (long offset : offsets) {
+            int position = toPosition(offset);
+            Date date = new Date(buffer.getLong(position + 8));
+            Date dateCreated = version > 2 ? new Date(buffer.getLong(position + 16)) : date;
+            noteList.add(Note.withoutContents(buffer.getLong(position), dateCreated, date));
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized List<Note> load(long[] ids, boolean withText) throws IOException {
+        open();
+        List<Note> noteList = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Long offset = offsetsById.get(id);
+            if (offset != null) {
+                noteList.add(readNote(offset, withText));
+            }
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized String loadText(long id) throws IOException {
+        open();
+        Long offset = offsetsById.get(id);
+        if (offset == null) {
+            throw new IOException("no note with id " + id);
+        }
+        return readNote(offset, true).getText();
+    }
+
+    // decodes the record at the specified offset. unless withText is true, only as much of the
+    // text is decoded as is needed for its preview
+    private Note readNote(long offset, boolean withText) throws IOException {
+        try {
+            ByteBuffer record = buffer.duplicate();
+            record.position(toPosition(offset));
+            long id = record.getLong();
+            Date date = new Date(record.getLong());
+            Date dateCreated = version > 2 ? new Date(record.getLong()) : date;
+            int flags = version > 1 ? record.get() : 0;
+            String title = readString(record, Integer.MAX_VALUE);
+            // a UTF-16 char never takes more than 3 bytes, so this is enough for the preview
+            int maxBytes = withText ? Integer.MAX_VALUE : Note.PREVIEW_LENGTH * 3 + 1;
+            String text;
+            if ((flags & RECORD_TEXT_DEFLATED) != 0) {
+                byte[] deflated = readBytes(record);
+                text = TextCompression.decompress(deflated, 0, deflated.length, maxBytes);
+            } else {
+                text = readString(record, maxBytes);
+            }
+            if (withText) {
+                return new Note(id, text, title, dateCreated, date);
+            }
+            return Note.withoutText(id, title, text, dateCreated, date);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("broken record at offset " + offset + " in " + file, e);
+        }
+    }
+
+    // reads a string, decoding at most maxBytes of it. the rest is skipped
+    private static String readString(ByteBuffer record, int maxBytes) throws IOException {
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = new byte[Math.min(length, maxBytes)];
+        record.get(bytes);
+        record.position(record.position() + length - bytes.length);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static byte[] readBytes(ByteBuffer record) throws IOException {
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new IOException("bad compressed text length " + length);
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public synchronized void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        open();
+        if (buffer == null) {
+            replaceAll(noteList);
+            return;
+        }
+        if (replacesSingleNote(mutations, noteList)) {
+            replace(mutations.get(mutations.size() - 1), noteList);
+            return;
+        }
+        // the last version of every note inserted or replaced by the mutations
+        Map<Long, Note> changed = new HashMap<>();
+        // the trash is only changed once the write succeeds
+        Map<Long, Long> newTrashedOffsets = new HashMap<>(trashedOffsets);
+        Map<Long, Note> newTrashedNotes = new HashMap<>(trashedNotes);
+        // the records of restored notes, which are put back in the table below
+        Map<Long, Long> restoredOffsets = new HashMap<>();
+        for (NoteMutation mutation : mutations) {
+            long id = mutation.note != null ? mutation.note.getId() : -1;
+            switch (mutation.type) {
+                case NoteMutation.INSERT:
+                case NoteMutation.REPLACE:
+                    changed.put(id, mutation.note);
+                    break;
+                case NoteMutation.TRASH:
+                    if (changed.containsKey(id)) {
+                        newTrashedNotes.put(id, changed.remove(id));
+                    } else if (restoredOffsets.containsKey(id)) {
+                        newTrashedOffsets.put(id, restoredOffsets.remove(id));
+                    } else if (offsetsById.containsKey(id)) {
+                        newTrashedOffsets.put(id, offsetsById.get(id));
+                    }
+                    break;
+                case NoteMutation.RESTORE:
+                    // the note leaves the trash even if it's replaced or deleted later in the same
+                    // write, so that the trash can become empty again
+                    if (newTrashedOffsets.containsKey(id)) {
+                        restoredOffsets.put(id, newTrashedOffsets.remove(id));
+                    } else if (newTrashedNotes.containsKey(id)) {
+                        changed.put(id, newTrashedNotes.remove(id));
+                    } else if (!offsetsById.containsKey(id)) {
+                        // the note was trashed before a replaceAll, which left its record out. the
+                        // notes of a pending replaceAll all have their text (see NoteRepository.setAll)
+                        if (!mutation.note.hasText()) {
+                            throw new IOException("note " + id + " isn't in " + file + " anymore");
+                        }
+                        changed.put(id, mutation.note);
+                    }
+                    break;
+                case NoteMutation.PURGE:
+                    newTrashedOffsets.clear();
+                    newTrashedNotes.clear();
+                    break;
+            }
+        }
+        long end = buffer.limit();
+        long[] newOffsets = new long[noteList.size()];
+        Map<Long, Long> newOffsetsById = new HashMap<>(noteList.size() * 2);
+        long start = NoteMetrics.start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        long newLiveSize = liveSize - 8L * offsets.length + 8L * newOffsets.length;
+        for (int i = 0; i < noteList.size(); i++) {
+            long id = noteList.get(i).getId();
+            Note note = changed.get(id);
+            Long offset = null;
+            if (note == null) {
+                offset = offsetsById.get(id);
+                if (offset == null) {
+                    offset = restoredOffsets.get(id);
+                    if (offset != null) {
+                        // restored, its record is back in the table
+                        newLiveSize += recordSize(offset);
+                    }
+                }
+            }
+            if (offset == null) {
+                // notes that aren't in the file yet are always inserted or replaced by the mutations
+                offset = end + bytes.size();
+                writeRecord(note != null ? note : noteList.get(i), version, data);
+                newLiveSize += end + bytes.size() - offset;
+            }
+            newOffsets[i] = offset;
+            newOffsetsById.put(id, offset);
+        }
+        // the records that were replaced or left out of the table
+        for (Map.Entry<Long, Long> entry : offsetsById.entrySet()) {
+            if (!entry.getValue().equals(newOffsetsById.get(entry.getKey()))) {
+                newLiveSize -= recordSize(entry.getValue());
+            }
+        }
+        alignTable(end + bytes.size(), data);
+        long newTable = end + bytes.size();
+        writeTable(newOffsets, data);
+        NoteMetrics.SERIALIZE_MAPPED.record(start);
+
+        boolean trashEmpty = newTrashedOffsets.isEmpty() && newTrashedNotes.isEmpty();
+        boolean oldFormat = version < FORMAT_VERSION;
+        if (trashEmpty && (oldFormat || isMostlyUnused(newTable + bytes.size(), newLiveSize))) {
+            // most of the file is records that aren't used anymore, or it's rewritten in the current
+            // format
+            List<Note> notes = new ArrayList<>(noteList.size());
+            for (Note note : noteList) {
+                if (changed.containsKey(note.getId())) {
+                    notes.add(changed.get(note.getId()));
+                } else if (restoredOffsets.containsKey(note.getId())) {
+                    // replaceAll only finds the records of notes in the current table
+                    notes.add(readNote(restoredOffsets.get(note.getId()), true));
+                } else {
+                    notes.add(note);
+                }
+            }
+            replaceAll(notes);
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(end);
+            raf.write(bytes.toByteArray());
+            // the records and the table have to be on disk before the header points to them
+            raf.getChannel().force(false);
+            raf.seek(HEADER_TABLE);
+            raf.writeLong(newTable);
+            raf.getChannel().force(false);
+        } catch (IOException e) {
+            // cut off whatever part of the new records was written
+            raf.setLength(end);
+            throw e;
+        } finally {
+            raf.close();
+        }
+        map();
+        offsets = newOffsets;
+        offsetsById = newOffsetsById;
+        table = newTable;
+        liveSize = newLiveSize;
+        trashedOffsets = newTrashedOffsets;
+        trashedNotes = newTrashedNotes;
+    }
+
+    // true if the mutations only replace the note at one position, with notes that have the same id,
+    // and the table can be changed in place
+    private boolean replacesSingleNote(List<NoteMutation> mutations, List<Note> noteList) {
+        if (version < FORMAT_VERSION || (table + 4) % 8 != 0 || offsets.length != noteList.size()) {
+            return false;
+        }
+        for (NoteMutation mutation : mutations) {
+            if (mutation.type != NoteMutation.REPLACE || mutation.position != mutations.get(0).position
+                    || mutation.position >= offsets.length || !offsetsById.containsKey(mutation.note.getId())
+                    || offsetsById.get(mutation.note.getId()) != offsets[mutation.position]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // appends the record of the replacing note and then points the note's offset in the table at it
+    // with a single write, which either happens or doesn't if the app is killed
+    private void replace(NoteMutation mutation, List<Note> noteList) throws IOException {
+        long end = buffer.limit();
+        long start = NoteMetrics.start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeRecord(mutation.note, version, new DataOutputStream(bytes));
+        NoteMetrics.SERIALIZE_MAPPED.record(start);
+        long oldOffset = offsets[mutation.position];
+        long newLiveSize = liveSize + bytes.size() - recordSize(oldOffset);
+        boolean trashEmpty = trashedOffsets.isEmpty() && trashedNotes.isEmpty();
+        if (trashEmpty && isMostlyUnused(end + bytes.size(), newLiveSize)) {
+            List<Note> notes = new ArrayList<>(noteList);
+            notes.set(mutation.position, mutation.note);
+            replaceAll(notes);
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            try {
+                raf.seek(end);
+                raf.write(bytes.toByteArray());
+                // the record has to be on disk before the table points to it
+                raf.getChannel().force(false);
+            } catch (IOException e) {
+                raf.setLength(end);
+                throw e;
+            }
+            raf.seek(table + 4 + 8L * mutation.position);
+            raf.writeLong(end);
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+        map();
+        offsets[mutation.position] = end;
+        offsetsById.put(mutation.note.getId(), end);
+        liveSize = newLiveSize;
+    }
+
+    // true if most of a file of the specified size is records that aren't used anymore
+    private static boolean isMostlyUnused(long size, long liveSize) {
+        return size > COMPACT_MIN_SIZE && size > 2 * liveSize;
+    }
+
+    // returns the size of the record at the specified offset
+    private long recordSize(long offset) throws IOException {
+        int fixed = version > 2 ? 25 : (version > 1 ? 17 : 16);
+        int position = toPosition(offset) + fixed;
+        int titleLength = buffer.getInt(position);
+        int textLength = buffer.getInt(position + 4 + titleLength);
+        return fixed + 4 + titleLength + 4 + textLength;
+    }
+
+    @Override
+    public synchronized void replaceAll(List<Note> noteList) throws IOException {
+        try {
+            open();
+        } catch (IOException e) {
+            // the old file is replaced anyway
+            close();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(0);
+            long[] newOffsets = new long[noteList.size()];
+            long written = 0;
+            for (int i = 0; i < noteList.size(); i++) {
+                Note note = noteList.get(i);
+                if (!note.hasText()) {
+                    // copied from the current file
+                    Long offset = offsetsById.get(note.getId());
+                    if (offset == null) {
+                        throw new IOException("the text of note " + note.getId() + " is missing");
+                    }
+                    note = readNote(offset, true);
+                }
+                newOffsets[i] = written + bytes.size();
+                writeRecord(note, FORMAT_VERSION, data);
+                if (bytes.size() > 64 * 1024) {
+                    raf.write(bytes.toByteArray());
+                    written += bytes.size();
+                    bytes.reset();
+                }
+            }
+            alignTable(written + bytes.size(), data);
+            long newTable = written + bytes.size();
+            writeTable(newOffsets, data);
+            raf.write(bytes.toByteArray());
+            raf.seek(HEADER_TABLE);
+            raf.writeLong(newTable);
+            raf.getChannel().force(false);
+        } catch (IOException e) {
+            raf.close();
+            tmp.delete();
+            throw e;
+        }
+        raf.close();
+        close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("can't rename " + tmp + " to " + file);
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't delete " + file);
+        }
+    }
+
+    // writes a record in the layout of the specified format version
+    private static void writeRecord(Note note, int version, DataOutputStream data) throws IOException {
+        data.writeLong(note.getId());
+        data.writeLong(note.getDateMillis());
+        if (version > 2) {
+            data.writeLong(note.getDateCreatedMillis());
+        }
+        byte[] deflated = version > 1 ? TextCompression.compress(note.getText()) : null;
+        if (version > 1) {
+            data.writeByte(deflated != null ? RECORD_TEXT_DEFLATED : 0);
+        }
+        writeString(note.getTitle(), data);
+        if (deflated != null) {
+            data.writeInt(deflated.length);
+            data.write(deflated);
+        } else {
+            writeString(note.getText(), data);
+        }
+    }
+
+    // pads the data at the specified offset, so that the offsets in a table written next start at a
+    // multiple of 8 bytes (see replace)
+    private static void alignTable(long offset, DataOutputStream data) throws IOException {
+        for (long padded = offset; (padded + 4) % 8 != 0; padded++) {
+            data.writeByte(0);
+        }
+    }
+
+    private static void writeTable(long[] offsets, DataOutputStream data) throws IOException {
+        data.writeInt(offsets.length);
+        for (long offset : offsets) {
+            data.writeLong(offset);
+        }
+    }
+
+    private static void writeString(String s, DataOutputStream data) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+}
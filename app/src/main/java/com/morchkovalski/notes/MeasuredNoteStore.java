@@ -0,0 +1,94 @@
+package com.morchkovalski.notes;
+
+import java.io.IOException;
+import java.util.List;
+
+// records the time of every call to another store in NoteMetrics, and the IO of the writes. the
+// IO is read from procfs before and after the call, which costs about as much as a small read
+// from the store, so it isn't measured for the reads, some of which run on the main thread
+public class MeasuredNoteStore implements NoteStore {
+
+    private final NoteStore store;
+
+    public MeasuredNoteStore(NoteStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public boolean exists() {
+        return store.exists();
+    }
+
+    @Override
+    public List<Note> load(boolean withText) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return store.load(withText);
+        } finally {
+            NoteMetrics.STORE_LOAD.record(start);
+        }
+    }
+
+    @Override
+    public List<Note> loadWithoutContents() throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return store.loadWithoutContents();
+        } finally {
+            NoteMetrics.STORE_LOAD_WITHOUT_CONTENTS.record(start);
+        }
+    }
+
+    @Override
+    public List<Note> load(long[] ids, boolean withText) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return store.load(ids, withText);
+        } finally {
+            NoteMetrics.STORE_LOAD_IDS.record(start);
+        }
+    }
+
+    @Override
+    public String loadText(long id) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return store.loadText(id);
+        } finally {
+            NoteMetrics.STORE_LOAD_TEXT.record(start);
+        }
+    }
+
+    @Override
+    public void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        long start = NoteMetrics.start();
+        long[] startIo = NoteMetrics.readIo();
+        try {
+            store.apply(mutations, noteList);
+        } finally {
+            NoteMetrics.STORE_APPLY.record(start, startIo);
+        }
+    }
+
+    @Override
+    public void replaceAll(List<Note> noteList) throws IOException {
+        long start = NoteMetrics.start();
+        long[] startIo = NoteMetrics.readIo();
+        try {
+            store.replaceAll(noteList);
+        } finally {
+            NoteMetrics.STORE_REPLACE_ALL.record(start, startIo);
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            store.clear();
+        } finally {
+            NoteMetrics.STORE_CLEAR.record(start);
+        }
+    }
+
+}
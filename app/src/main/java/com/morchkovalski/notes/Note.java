@@ -1,126 +1,362 @@
 package com.morchkovalski.notes;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.text.BreakIterator;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 public class Note {
 
     public static final String PREFS_FILE = "notes_prefs";
     public static final String PREF_NOTE_LIST = "note_list";
 
+    public static final String JSON_NOTE_ID = "id";
     public static final String JSON_NOTE_TITLE = "title";
     public static final String JSON_NOTE_TEXT = "text";
+    // long texts are saved compressed (see TextCompression) and Base64 encoded under this name
+    // instead of JSON_NOTE_TEXT
+    public static final String JSON_NOTE_TEXT_DEFLATED = "text_deflated";
     public static final String JSON_NOTE_DATE = "date";
+    // notes saved before notes had a creation date don't have it, they are created when they were
+    // last edited
+    public static final String JSON_NOTE_DATE_CREATED = "date_created";
+    public static final String JSON_NOTE_PREVIEW = "preview";
     public static final String JSON_NOTES = "notes";
 
-    // returns the saved list of Note objects from SharedPreferences
-    private static List<Note> getNoteList(Context context) throws JSONException {
-        SharedPreferences settings = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
-        List<Note> noteList = new ArrayList<>();
-        if (settings.contains(PREF_NOTE_LIST)) {
-            String json = settings.getString(PREF_NOTE_LIST, "");
-            JSONObject jsonNotes = new JSONObject(json);
-            JSONArray jsonNotesArray = jsonNotes.getJSONArray(JSON_NOTES);
-            for (int i = 0; i < jsonNotesArray.length(); i++) {
-                JSONObject jsonNote = jsonNotesArray.getJSONObject(i);
-                noteList.add(Note.fromJSON(jsonNote));
-            }
-        }
-        return noteList;
-    }
-
-    // stores the specified list of Note objects in SharedPreferences
-    public static void saveNoteList(Context context, List<Note> noteList) throws JSONException {
-        SharedPreferences settings = context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = settings.edit();
+    // the maximum length of the text preview shown in the note list
+    public static final int PREVIEW_LENGTH = 300;
+    // the maximum number of lines in the text preview
+    public static final int PREVIEW_LINES = 5;
 
-        JSONArray jsonNotesArray = new JSONArray();
-        for (Note note : noteList) {
-            jsonNotesArray.put(note.toJSON());
+    // stores the specified list of Note objects, replacing the current one
+    public static void saveNoteList(Context context, List<Note> noteList) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).setAll(noteList);
+        } finally {
+            NoteMetrics.NOTE_SAVE_LIST.record(start);
         }
-
-        JSONObject jsonNotes = new JSONObject();
-        jsonNotes.put(JSON_NOTES, jsonNotesArray);
-
-        editor.putString(PREF_NOTE_LIST, jsonNotes.toString());
-        editor.apply();
     }
 
     // creates a Note object instance from json
     public static Note fromJSON(JSONObject jsonNote) throws JSONException {
         String title = jsonNote.getString(JSON_NOTE_TITLE);
-        String text = jsonNote.getString(JSON_NOTE_TEXT);
+        String text;
+        if (jsonNote.has(JSON_NOTE_TEXT_DEFLATED)) {
+            try {
+                text = inflateText(jsonNote.getString(JSON_NOTE_TEXT_DEFLATED));
+            } catch (IOException e) {
+                throw new JSONException(e.getMessage());
+            }
+        } else {
+            text = jsonNote.getString(JSON_NOTE_TEXT);
+        }
         Date date = new Date(jsonNote.getLong(JSON_NOTE_DATE));
-        return new Note(text, title, date);
+        Date dateCreated = jsonNote.has(JSON_NOTE_DATE_CREATED) ? new Date(jsonNote.getLong(JSON_NOTE_DATE_CREATED)) : date;
+        // notes saved before ids were introduced get a new one
+        long id = jsonNote.has(JSON_NOTE_ID) ? jsonNote.getLong(JSON_NOTE_ID) : newId();
+        return new Note(id, text, title, dateCreated, date);
     }
 
-    // adds a new Note object to the stored Note list (as the first object in the list)
-    public static void add(Context context) throws JSONException {
-        List<Note> noteList = getNoteList(context);
-        noteList.add(0, new Note());
-        saveNoteList(context, noteList);
+    // reads a note written by toJSON or writeJSON with a streaming parser, without building a
+    // JSONObject. unless withText is true, only a preview of the text is kept (but notes saved
+    // without an id keep their text, since there is no way to find it again later)
+    static Note readJSON(JsonReader reader, boolean withText) throws IOException {
+        long id = -1;
+        String title = null;
+        String text = null;
+        // only inflated if the text is needed
+        String deflatedText = null;
+        String preview = null;
+        Date date = null;
+        Date dateCreated = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case JSON_NOTE_ID:
+                    id = reader.nextLong();
+                    break;
+                case JSON_NOTE_TITLE:
+                    title = reader.nextString();
+                    break;
+                case JSON_NOTE_TEXT:
+                    text = reader.nextString();
+                    break;
+                case JSON_NOTE_TEXT_DEFLATED:
+                    deflatedText = reader.nextString();
+                    break;
+                case JSON_NOTE_DATE:
+                    date = new Date(reader.nextLong());
+                    break;
+                case JSON_NOTE_DATE_CREATED:
+                    dateCreated = new Date(reader.nextLong());
+                    break;
+                case JSON_NOTE_PREVIEW:
+                    preview = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (title == null || text == null && deflatedText == null || date == null) {
+            throw new IOException("incomplete note");
+        }
+        if (text == null && (withText || id == -1 || preview == null)) {
+            text = inflateText(deflatedText);
+        }
+        if (dateCreated == null) {
+            dateCreated = date;
+        }
+        if (id == -1) {
+            // saved before ids were introduced
+            return new Note(newId(), text, title, dateCreated, date);
+        }
+        if (withText) {
+            return new Note(id, text, title, dateCreated, date);
+        }
+        // notes saved before previews were stored get theirs cut from the text
+        return withoutText(id, title, preview != null ? preview : text, dateCreated, date);
+    }
+
+    // adds a new Note object to the stored Note list (as the first object in the list) and returns it
+    public static Note add(Context context) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            Note note = new Note();
+            NoteRepository.getInstance(context).insert(0, note);
+            return note;
+        } finally {
+            NoteMetrics.NOTE_ADD.record(start);
+        }
     }
 
     // inserts a Note object to the stored Note list at the specified position
-    public static void insert(Context context, int position, Note note) throws JSONException {
-        List<Note> noteList = getNoteList(context);
-        noteList.add(position, note);
-        saveNoteList(context, noteList);
+    public static void insert(Context context, int position, Note note) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).insert(position, note);
+        } finally {
+            NoteMetrics.NOTE_INSERT.record(start);
+        }
     }
 
     // deletes a note at the specified position from the stored Note list
-    public static void delete(Context context, int position) throws JSONException {
-        List<Note> noteList = getNoteList(context);
-        noteList.remove(position);
-        saveNoteList(context, noteList);
+    public static void delete(Context context, int position) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).delete(position);
+        } finally {
+            NoteMetrics.NOTE_DELETE.record(start);
+        }
     }
 
     // replaces a Note object at the specified position in the stored note list with another Note object
-    public static void replace(Context context, int position, Note note) throws JSONException {
-        List<Note> noteList = getNoteList(context);
-        noteList.remove(position);
-        noteList.add(position, note);
-        saveNoteList(context, noteList);
+    public static void replace(Context context, int position, Note note) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).replace(position, note);
+        } finally {
+            NoteMetrics.NOTE_REPLACE.record(start);
+        }
     }
 
     // moves a Note object from one position to another in the stored Note list
-    public static void move(Context context, int from, int to) throws JSONException {
-        List<Note> noteList = getNoteList(context);
-        Note note = noteList.get(from);
-        if (from < to) {
-            for (int i = from; i < to; i++) {
-                Collections.swap(noteList, i, i + 1);
-            }
-        } else {
-            for (int i = from; i > to; i--) {
-                Collections.swap(noteList, i, i - 1);
+    public static void move(Context context, int from, int to) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).move(from, to);
+        } finally {
+            NoteMetrics.NOTE_MOVE.record(start);
+        }
+    }
+
+    // returns an Editor that applies any number of changes to the stored Note list at once
+    public static Editor edit(Context context) {
+        return new Editor(NoteRepository.getInstance(context));
+    }
+
+    // collects changes to the stored Note list and applies them with a single write when committed.
+    // positions refer to the list as it is after all previous changes in the same Editor
+    public static class Editor {
+        private final NoteRepository repository;
+        private final List<NoteMutation> mutations = new ArrayList<>();
+
+        private Editor(NoteRepository repository) {
+            this.repository = repository;
+        }
+
+        public Editor insert(int position, Note note) {
+            mutations.add(NoteMutation.insert(position, note));
+            return this;
+        }
+
+        public Editor delete(int position) {
+            mutations.add(NoteMutation.delete(position));
+            return this;
+        }
+
+        public Editor replace(int position, Note note) {
+            mutations.add(NoteMutation.replace(position, note));
+            return this;
+        }
+
+        public Editor move(int from, int to) {
+            mutations.add(NoteMutation.move(from, to));
+            return this;
+        }
+
+        // removes the note at the specified position, keeping it in the trash so that it can be
+        // put back with restore until the trash is purged (see purgeTrash)
+        public Editor trash(int position) {
+            mutations.add(NoteMutation.trash(position, null));
+            return this;
+        }
+
+        // puts a trashed note back at the specified position
+        public Editor restore(int position, Note note) {
+            mutations.add(NoteMutation.restore(position, note));
+            return this;
+        }
+
+        // applies all changes. if any of them fails, none are applied
+        public void commit() throws IOException {
+            long start = NoteMetrics.start();
+            try {
+                repository.apply(mutations);
+                mutations.clear();
+            } finally {
+                NoteMetrics.NOTE_COMMIT.record(start);
             }
         }
-        saveNoteList(context, noteList);
     }
 
-    // returns a Note object at the specified position in the stored Note list
-    public static Note get(Context context, int position) throws JSONException {
-        return getNoteList(context).get(position);
+    // deletes the notes in the trash for good
+    public static void purgeTrash(Context context) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).purgeTrash();
+        } finally {
+            NoteMetrics.NOTE_PURGE_TRASH.record(start);
+        }
+    }
+
+    // writes all changes to the stored Note list that are still queued. if wait is true, returns
+    // only once they are written
+    public static void flush(Context context, boolean wait) {
+        long start = NoteMetrics.start();
+        try {
+            NoteRepository.getInstance(context).flush(wait);
+        } finally {
+            NoteMetrics.NOTE_FLUSH.record(start);
+        }
+    }
+
+    // returns a Note object at the specified position in the stored Note list. the text (or even
+    // the title, see Note.withoutContents) of the returned note may not be loaded, use getFull if
+    // it's needed
+    public static Note get(Context context, int position) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return NoteRepository.getInstance(context).get(position);
+        } finally {
+            NoteMetrics.NOTE_GET.record(start);
+        }
+    }
+
+    // returns a Note object at the specified position in the stored Note list, with its text loaded
+    public static Note getFull(Context context, int position) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return NoteRepository.getInstance(context).getFull(position);
+        } finally {
+            NoteMetrics.NOTE_GET_FULL.record(start);
+        }
+    }
+
+    // returns the position of the note with the specified id in the stored Note list, or -1 if
+    // there is no such note
+    public static int indexOf(Context context, long id) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return NoteRepository.getInstance(context).indexOf(id);
+        } finally {
+            NoteMetrics.NOTE_INDEX_OF.record(start);
+        }
     }
 
     // returns the number of items stored in the Note list
-    public static int count(Context context) throws JSONException {
-        return getNoteList(context).size();
+    public static int count(Context context) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return NoteRepository.getInstance(context).count();
+        } finally {
+            NoteMetrics.NOTE_COUNT.record(start);
+        }
+    }
+
+    private static final Random idGenerator = new Random();
+
+    // returns a new random note id. ids are never negative, so -1 can be used as "no id"
+    public static long newId() {
+        synchronized (idGenerator) {
+            return idGenerator.nextLong() & Long.MAX_VALUE;
+        }
     }
 
+    // returns the beginning of the specified text, at most PREVIEW_LENGTH characters and
+    // PREVIEW_LINES lines long. a preview of a preview is the same preview
+    public static String makePreview(String text) {
+        int end = Math.min(text.length(), PREVIEW_LENGTH);
+        int lines = 1;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n' && ++lines > PREVIEW_LINES) {
+                end = i;
+                break;
+            }
+        }
+        if (end == text.length()) {
+            return text;
+        }
+        // don't cut what is shown as a single character (a surrogate pair, a letter with accents,
+        // an emoji sequence) in half
+        BreakIterator characters = BreakIterator.getCharacterInstance();
+        characters.setText(text);
+        if (!characters.isBoundary(end)) {
+            end = characters.preceding(end);
+        }
+        return text.substring(0, end);
+    }
+
+    // creates a Note object instance without its text, which can be loaded later with withText
+    public static Note withoutText(long id, String title, String preview, Date dateCreated, Date dateEdited) {
+        return new Note(id, null, makePreview(preview), title, dateCreated, dateEdited);
+    }
+
+    // creates a Note object instance with only its id and dates. the rest is loaded later with
+    // NoteRepository.getContents or getFull
+    public static Note withoutContents(long id, Date dateCreated, Date dateEdited) {
+        return new Note(id, null, null, null, dateCreated, dateEdited);
+    }
+
+    private long id;
+    private Date dateCreated;
     private Date dateEdited;
+    // null if the note was created with withoutContents
     private String title;
+    // null if the text wasn't loaded
     private String text;
+    private String preview;
 
     public Note() {
         this("", "", new Date());
@@ -135,30 +371,126 @@ public class Note {
     }
 
     public Note(String text, String title, Date dateEdited) {
+        this(newId(), text, title, dateEdited);
+    }
+
+    // creates a note that was created when it was last edited, like a new note
+    public Note(long id, String text, String title, Date dateEdited) {
+        this(id, text, title, dateEdited, dateEdited);
+    }
+
+    public Note(long id, String text, String title, Date dateCreated, Date dateEdited) {
+        this(id, text, makePreview(text), title, dateCreated, dateEdited);
+    }
+
+    private Note(long id, String text, String preview, String title, Date dateCreated, Date dateEdited) {
+        this.id = id;
         this.title = title;
         this.text = text;
+        this.preview = preview;
+        this.dateCreated = dateCreated;
         this.dateEdited = dateEdited;
     }
 
+    // returns a copy of this note with the specified text loaded
+    public Note withText(String text) {
+        return new Note(id, text, preview, title, dateCreated, dateEdited);
+    }
+
+    // returns a copy of this note with the specified contents and the current date. the copy keeps
+    // the id and the creation date, so it's still the same note as far as the stores are concerned
+    public Note edited(String text, String title) {
+        return new Note(id, text, title, dateCreated, new Date());
+    }
+
+    public long getId() {
+        return id;
+    }
+
     public Date getDate() {
         return (Date) dateEdited.clone();
     }
 
+    // returns the date as milliseconds, without making a copy of it like getDate
+    public long getDateMillis() {
+        return dateEdited.getTime();
+    }
+
+    public Date getDateCreated() {
+        return (Date) dateCreated.clone();
+    }
+
+    public long getDateCreatedMillis() {
+        return dateCreated.getTime();
+    }
+
     public String getTitle() {
+        if (title == null) {
+            throw new IllegalStateException("the contents of note " + id + " aren't loaded");
+        }
         return title;
     }
 
+    // returns the full text of the note. only notes returned by getFull are guaranteed to have it
     public String getText() {
+        if (text == null) {
+            throw new IllegalStateException("the text of note " + id + " isn't loaded");
+        }
         return text;
     }
 
+    public boolean hasText() {
+        return text != null;
+    }
+
+    public String getPreview() {
+        if (preview == null) {
+            throw new IllegalStateException("the contents of note " + id + " aren't loaded");
+        }
+        return preview;
+    }
+
+    // returns false for notes created with withoutContents
+    public boolean hasContents() {
+        return title != null;
+    }
+
     // converts Note to json
     public JSONObject toJSON() throws JSONException {
         JSONObject jsonNote = new JSONObject();
+        jsonNote.put(JSON_NOTE_ID, this.id);
         jsonNote.put(JSON_NOTE_TITLE, this.title);
-        jsonNote.put(JSON_NOTE_TEXT, this.text);
+        byte[] deflated = TextCompression.compress(this.text);
+        if (deflated != null) {
+            jsonNote.put(JSON_NOTE_TEXT_DEFLATED, Base64.encodeToString(deflated, Base64.NO_WRAP));
+        } else {
+            jsonNote.put(JSON_NOTE_TEXT, this.text);
+        }
         jsonNote.put(JSON_NOTE_DATE, this.dateEdited.getTime());
+        jsonNote.put(JSON_NOTE_DATE_CREATED, this.dateCreated.getTime());
+        jsonNote.put(JSON_NOTE_PREVIEW, this.preview);
         return jsonNote;
     }
 
+    // writes the note as a json object with its text as it is, which other programs can read, unlike
+    // toJSON's compressed texts. the note must have its text
+    public void writeJSON(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(JSON_NOTE_ID).value(id);
+        writer.name(JSON_NOTE_TITLE).value(getTitle());
+        writer.name(JSON_NOTE_TEXT).value(getText());
+        writer.name(JSON_NOTE_DATE).value(dateEdited.getTime());
+        writer.name(JSON_NOTE_DATE_CREATED).value(dateCreated.getTime());
+        writer.endObject();
+    }
+
+    // returns the text saved under JSON_NOTE_TEXT_DEFLATED
+    static String inflateText(String deflated) throws IOException {
+        try {
+            return TextCompression.decompress(Base64.decode(deflated, Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("the compressed text isn't valid Base64", e);
+        }
+    }
+
 }
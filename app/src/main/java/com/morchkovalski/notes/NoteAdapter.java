@@ -1,15 +1,19 @@
 package com.morchkovalski.notes;
 
+import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.Snackbar;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.util.Pair;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.view.ActionMode;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
-import android.text.format.DateUtils;
-import android.util.SparseBooleanArray;
+import android.text.format.DateFormat;
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -18,18 +22,23 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.json.JSONException;
-
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NavigableSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
-import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
+public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> implements NoteRepository.OnChangeListener {
 
     public static class NoteHolder extends RecyclerView.ViewHolder {
         protected TextView vTitle;
@@ -44,19 +53,73 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         }
     }
 
+    // list updates are computed on this thread
+    private static final Executor diffExecutor = Executors.newSingleThreadExecutor();
+    // contents of notes kept without them (see NoteRepository's paging mode) are read on this thread
+    private static final Executor pageExecutor = Executors.newSingleThreadExecutor();
+
+    // contents are read for this many notes at once, around the ones being shown
+    private static final int PAGE_SIZE = 50;
+    // at most this many pages of contents are kept, the least recently shown ones are dropped
+    private static final int CACHED_PAGES = 8;
+    // the cached rows are dropped once there are this many of them
+    private static final int MAX_CACHED_ROWS = 500;
+
     private NoteListFragment fragment;
     private RecyclerView recyclerView;
     private Snackbar deleteSnackbar = null;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // the notes currently shown. this list is never modified, it is replaced with an updated copy
+    // (except during a drag, see dragItem)
+    private List<Note> notes = Collections.emptyList();
+    // true while a list update is being computed, and if another one has to be computed after it
+    private boolean diffRunning = false;
+    private boolean diffPending = false;
+    // only notes matching this query are shown, unless it's empty
+    private String query = "";
+    // the order the notes are shown in (see SortIndex), and the order of the notes shown now
+    private int order = SortIndex.ORDER_MANUAL;
+    private int notesOrder = SortIndex.ORDER_MANUAL;
+    // false until the notes were read for the first time
+    private boolean loaded = false;
+
+    // contents read for notes that are kept without them, by id. an entry only belongs to the
+    // version of the note with the same date (see getLoadedContents)
+    private final LinkedHashMap<Long, Note> loadedNotes = new LinkedHashMap<Long, Note>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Note> eldest) {
+            return size() > PAGE_SIZE * CACHED_PAGES;
+        }
+    };
+    // first positions of the pages being read
+    private final Set<Integer> loadingPages = new HashSet<>();
+
+    // display strings of the notes shown so far, by id. the rows are formatted for this locale and
+    // time format, and all of them are dropped when either changes
+    private final LongSparseArray<NoteRow> rows = new LongSparseArray<>();
+    private Locale rowsLocale = null;
+    private boolean rows24Hour = false;
 
     private ActionMode actionMode = null;
-    private SparseBooleanArray selectedNotes = new SparseBooleanArray();
+    // the positions of the selected notes in the shown list, a bit per note however many are
+    // selected. moved over to the new positions by id whenever the list changes (see remapSelection)
+    private BitSet selection = new BitSet();
+    // id of the note selected or unselected last, where a range selection starts (see selectRange)
+    private long selectionAnchor = -1;
     private Stack<Pair<Integer, Note>> removedNotes = new Stack<>();
 
-    private int lastSaved = -1;
+    private long lastSaved = -1;
+
+    // while a note is being dragged, its id and its current position on screen. the stored list is
+    // only changed when the note is dropped
+    private long draggedNote = -1;
+    private int dragTo = -1;
 
 
     public NoteAdapter(NoteListFragment fragment) {
         this.fragment = fragment;
+        setHasStableIds(true);
     }
 
     @Override
@@ -64,6 +127,17 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         super.onAttachedToRecyclerView(recyclerView);
         hideDeleteSnackbar();
         this.recyclerView = recyclerView;
+        // the view is created again after a configuration change, which may have changed the
+        // locale or the time format
+        Locale locale = Locale.getDefault();
+        boolean is24Hour = DateFormat.is24HourFormat(fragment.getContext());
+        if (!locale.equals(rowsLocale) || is24Hour != rows24Hour) {
+            rows.clear();
+            rowsLocale = locale;
+            rows24Hour = is24Hour;
+        }
+        NoteRepository.getInstance(fragment.getContext()).addOnChangeListener(this);
+        updateNotes();
 
         if (actionMode != null) {
             actionMode = fragment.onStartSelection(selectionModeCallback);
@@ -74,25 +148,19 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         // swiped left/right or dragged up/down
         ItemTouchHelper.SimpleCallback swipeCallback = new ItemTouchHelper.SimpleCallback(ItemTouchHelper.UP | ItemTouchHelper.DOWN, ItemTouchHelper.LEFT | ItemTouchHelper.RIGHT) {
 
-            int dragFrom = -1;
-            int dragTo = -1;
-
             @Override
             public boolean onMove(RecyclerView recyclerView, RecyclerView.ViewHolder viewHolder, RecyclerView.ViewHolder target) {
-                // update initial and target positions
-                if (dragFrom == -1) {
-                    dragFrom = viewHolder.getAdapterPosition();
-                }
-                dragTo = target.getAdapterPosition();
-                // update the note list
-                moveItem(viewHolder.getAdapterPosition(), target.getAdapterPosition());
+                // only move the note on screen, the stored list is updated once the note is dropped
+                dragItem(viewHolder.getAdapterPosition(), target.getAdapterPosition());
                 return true;
             }
 
             @Override
             public boolean isLongPressDragEnabled() {
-                // only allow the user to move a note up/down when there are no other notes selected
-                return selectedNotes.size() == 1;
+                // only allow the user to move a note up/down when there are no other notes selected,
+                // and not while the list is filtered (the notes in between wouldn't be visible) or
+                // sorted (the note would just move back)
+                return selection.cardinality() == 1 && query.length() == 0 && order == SortIndex.ORDER_MANUAL;
             }
 
             @Override
@@ -104,19 +172,23 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
             @Override
             public void onSwiped(RecyclerView.ViewHolder viewHolder, int direction) {
                 // delete a note when swiped left or right
-                removeItem(viewHolder.getAdapterPosition());
+                removeItem(viewHolder.getItemId());
             }
 
             @Override
             public void clearView(RecyclerView recyclerView, RecyclerView.ViewHolder viewHolder) {
                 super.clearView(recyclerView, viewHolder);
+                if (draggedNote == -1) {
+                    return;
+                }
+                int to = dragTo;
+                dropItem();
                 // clear selection and exit action mode when note is released after it was moved
-                if (dragFrom != -1 && dragTo != -1 && selectedNotes.size() == 1) {
-                    selectedNotes.delete(dragFrom);
-                    notifyItemChanged(dragTo);
+                if (selection.cardinality() == 1) {
+                    selection.clear();
+                    notifyItemChanged(to);
                     actionMode.finish();
                 }
-                dragFrom = dragTo = -1;
             }
         };
 
@@ -124,6 +196,150 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         noteTouchHelper.attachToRecyclerView(recyclerView);
     }
 
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        NoteRepository.getInstance(fragment.getContext()).removeOnChangeListener(this);
+    }
+
+    @Override
+    public void onNoteListChanged() {
+        updateNotes();
+    }
+
+    // compares the shown notes with the stored list on a background thread, and then updates
+    // only the rows that changed. when the order changed, all rows are shown again instead, since
+    // comparing two differently sorted lists would take longer than binding the visible rows
+    private void updateNotes() {
+        if (diffRunning || draggedNote != -1) {
+            diffPending = true;
+            return;
+        }
+        diffRunning = true;
+        final List<Note> oldNotes = notes;
+        final String query = this.query;
+        final int order = this.order;
+        final boolean reordered = order != notesOrder;
+        final Context context = fragment.getContext().getApplicationContext();
+        diffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Note> newNotes = null;
+                DiffUtil.DiffResult diff = null;
+                try {
+                    newNotes = NoteRepository.getInstance(context).search(query, order);
+                    if (!reordered) {
+                        diff = DiffUtil.calculateDiff(new NoteDiffCallback(oldNotes, newNotes));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                final List<Note> result = newNotes;
+                final DiffUtil.DiffResult resultDiff = diff;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        diffRunning = false;
+                        if (result == null) {
+                            Toast.makeText(context, R.string.toast_read_failed, Toast.LENGTH_LONG).show();
+                        } else if (notes != oldNotes) {
+                            // the shown notes changed in the meantime (a note was dragged), start over
+                            diffPending = true;
+                        } else {
+                            remapSelection(result);
+                            notes = result;
+                            if (reordered) {
+                                notesOrder = order;
+                                notifyDataSetChanged();
+                                recyclerView.scrollToPosition(0);
+                            } else {
+                                resultDiff.dispatchUpdatesTo(NoteAdapter.this);
+                            }
+                            if (actionMode != null) {
+                                afterSelectionChange();
+                            }
+                            if (!loaded) {
+                                loaded = true;
+                                fragment.onNotesLoaded();
+                            }
+                            // show "No notes" on the fragment background if there are no notes
+                            fragment.showBackgroundHint(notes.isEmpty());
+                        }
+                        if (diffPending) {
+                            diffPending = false;
+                            updateNotes();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // shows only the notes matching the query (see NoteRepository.search)
+    public void setQuery(String query) {
+        if (query.equals(this.query)) {
+            return;
+        }
+        this.query = query;
+        updateNotes();
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    // shows the notes in the specified order (see SortIndex)
+    public void setOrder(int order) {
+        if (order == this.order) {
+            return;
+        }
+        this.order = order;
+        // before the adapter is attached, the notes are read in this order once it is
+        if (recyclerView != null) {
+            updateNotes();
+        }
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // notes are the same item if they have the same id. since notes are never modified, a note
+    // with unchanged contents is the very same object
+    private static class NoteDiffCallback extends DiffUtil.Callback {
+        private final List<Note> oldNotes;
+        private final List<Note> newNotes;
+
+        NoteDiffCallback(List<Note> oldNotes, List<Note> newNotes) {
+            this.oldNotes = oldNotes;
+            this.newNotes = newNotes;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldNotes.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newNotes.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return oldNotes.get(oldPosition).getId() == newNotes.get(newPosition).getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return oldNotes.get(oldPosition) == newNotes.get(newPosition);
+        }
+    }
+
     @Override
     public NoteHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View itemView = LayoutInflater.from(parent.getContext()).inflate(R.layout.note_holder, parent, false);
@@ -135,54 +351,81 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
 
     @Override
     public void onBindViewHolder(NoteHolder holder, int position) {
-        Note note = null;
-        try {
-            note = Note.get(holder.itemView.getContext(), position);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+        long start = NoteMetrics.start();
+        bind(holder, position);
+        NoteMetrics.BIND_ROW.record(start);
+    }
 
-        // hide the "No notes" text on the fragment background
-        fragment.showBackgroundHint(false);
+    private void bind(NoteHolder holder, int position) {
+        Note note = notes.get(position);
+        // the row of a note that was already shown is reused, so that binding it again doesn't
+        // format or allocate anything
+        NoteRow row = rows.get(note.getId());
+        if (row == null || row.note != note || !row.hasContents) {
+            row = createRow(position, note);
+            if (rows.size() >= MAX_CACHED_ROWS) {
+                rows.clear();
+            }
+            rows.put(note.getId(), row);
+        }
 
-        if (note != null) {
-            if (note.getTitle().length() > 0) {
-                holder.vTitle.setText(note.getTitle());
+        if (!row.hasContents) {
+            // shown with only the date until the contents are read
+            holder.vTitle.setVisibility(View.GONE);
+            holder.vText.setText("");
+            holder.vText.setVisibility(View.VISIBLE);
+        } else {
+            if (row.title.length() > 0) {
+                holder.vTitle.setText(row.title);
                 holder.vTitle.setVisibility(View.VISIBLE);
             } else {
                 holder.vTitle.setVisibility(View.GONE);
             }
 
-            if (note.getText().length() > 0) {
-                holder.vText.setText(note.getText());
+            if (row.preview.length() > 0) {
+                holder.vText.setText(row.preview);
                 holder.vText.setVisibility(View.VISIBLE);
             } else {
                 holder.vText.setVisibility(View.GONE);
             }
-
-            holder.vDate.setText(DateUtils.formatDateTime(holder.itemView.getContext(), note.getDate().getTime(), DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_YEAR));
-            holder.vDate.setVisibility(View.VISIBLE);
-
-        } else {
-            holder.vText.setText(R.string.hint_read_failed);
-            holder.vText.setVisibility(View.VISIBLE);
-            holder.vTitle.setVisibility(View.GONE);
-            holder.vDate.setVisibility(View.GONE);
         }
 
-        if (position == lastSaved) {
+        holder.vDate.setText(row.date);
+        holder.vDate.setVisibility(View.VISIBLE);
+
+        if (note.getId() == lastSaved) {
             holder.itemView.setBackgroundResource(R.drawable.bg_transition_saved);
             TransitionDrawable transition = (TransitionDrawable) holder.itemView.getBackground();
             transition.startTransition(fragment.getResources().getInteger(R.integer.trans_saved_duration));
             lastSaved = -1;
         }
 
-        if (selectedNotes.get(position, false)) {
-            holder.itemView.setActivated(true);
-        } else {
-            holder.itemView.setActivated(false);
+        holder.itemView.setActivated(selection.get(position));
+
+    }
+
+    private NoteRow createRow(int position, Note note) {
+        Note contents = note;
+        if (!note.hasContents()) {
+            // read this page and the ones next to it, so that they're ready when scrolled to
+            int page = position - position % PAGE_SIZE;
+            loadPage(page);
+            loadPage(page - PAGE_SIZE);
+            loadPage(page + PAGE_SIZE);
+            contents = getLoadedContents(note);
         }
+        return new NoteRow(fragment.getContext(), note, contents);
+    }
 
+    // returns the contents read for the note, or null if they weren't read yet. contents read for
+    // an older version of the note (which was edited since) are dropped, so that they're read again
+    private Note getLoadedContents(Note note) {
+        Note contents = loadedNotes.get(note.getId());
+        if (contents != null && contents.getDateMillis() != note.getDateMillis()) {
+            loadedNotes.remove(note.getId());
+            return null;
+        }
+        return contents;
     }
 
     // handles click and long-click on a note item
@@ -192,10 +435,13 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         public void onClick(View view) {
             hideDeleteSnackbar();
             int position = recyclerView.getChildAdapterPosition(view);
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
             // if there are no selected notes, notify the fragment that a note was clicked
             // otherwise, toggle selection for the clicked note
             if (actionMode == null) {
-                fragment.onNoteClicked(position);
+                fragment.onNoteClicked(notes.get(position).getId());
             } else {
                 toggleSelection(position);
             }
@@ -204,7 +450,16 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         @Override
         public boolean onLongClick(View view) {
             hideDeleteSnackbar();
-            toggleSelection(recyclerView.getChildAdapterPosition(view));
+            int position = recyclerView.getChildAdapterPosition(view);
+            if (position == RecyclerView.NO_POSITION) {
+                return true;
+            }
+            // while selecting, a long click on a note that isn't selected selects all notes up to it
+            if (actionMode != null && !selection.get(position)) {
+                selectRange(position);
+            } else {
+                toggleSelection(position);
+            }
             return true;
         }
     }
@@ -226,9 +481,15 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             switch (item.getItemId()) {
                 case R.id.action_delete:
-                    removeItems(getSelection());
+                    removeSelectedItems();
                     mode.finish();
                     return true;
+                case R.id.action_select_all:
+                    selectAll();
+                    return true;
+                case R.id.action_invert_selection:
+                    invertSelection();
+                    return true;
                 default:
                     return false;
             }
@@ -237,18 +498,16 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         @Override
         public void onDestroyActionMode(ActionMode mode) {
             actionMode = null;
-            // clear selection
-            List<Integer> selection = getSelection();
-            selectedNotes.clear();
-            for (int item : selection) {
-                notifyItemChanged(item);
-            }
+            // clear selection. only the rows on screen are bound again, however long the list is
+            selection.clear();
+            selectionAnchor = -1;
+            notifyItemRangeChanged(0, notes.size());
             fragment.onFinishSelection();
         }
     };
 
     private void updateSelectionTitle() {
-        actionMode.setTitle(recyclerView.getResources().getQuantityString(R.plurals.title_notes_selected, selectedNotes.size(), selectedNotes.size()));
+        actionMode.setTitle(recyclerView.getResources().getQuantityString(R.plurals.title_notes_selected, selection.cardinality(), selection.cardinality()));
     }
 
     // shows a Snackbar that allows the user to undo the deletion of a note
@@ -264,125 +523,307 @@ public class NoteAdapter extends RecyclerView.Adapter<NoteAdapter.NoteHolder> {
         deleteSnackbar.show();
     }
 
-    // hides the Snackbar shown by showDeleteSnackbar()
+    // hides the Snackbar shown by showDeleteSnackbar(). the deleted notes can't be restored after
+    // that, so they are purged from the trash
     public void hideDeleteSnackbar() {
         if (deleteSnackbar != null) {
             deleteSnackbar.dismiss();
             deleteSnackbar = null;
         }
+        if (!removedNotes.empty()) {
+            try {
+                Note.purgeTrash(fragment.getContext());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         removedNotes.clear();
     }
 
+    // reads the contents of the notes on the page starting at the specified position which are
+    // kept without them
+    private void loadPage(final int start) {
+        if (start < 0 || start >= notes.size() || loadingPages.contains(start)) {
+            return;
+        }
+        int end = Math.min(start + PAGE_SIZE, notes.size());
+        long[] ids = new long[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            Note note = notes.get(i);
+            if (!note.hasContents() && getLoadedContents(note) == null) {
+                ids[count++] = note.getId();
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        loadingPages.add(start);
+        final long[] pageIds = Arrays.copyOf(ids, count);
+        final Context context = fragment.getContext().getApplicationContext();
+        pageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Note> loaded = null;
+                try {
+                    loaded = NoteRepository.getInstance(context).getContents(pageIds);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                final List<Note> result = loaded;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingPages.remove(start);
+                        if (result == null) {
+                            return;
+                        }
+                        Set<Long> ids = new HashSet<>();
+                        for (Note note : result) {
+                            loadedNotes.put(note.getId(), note);
+                            ids.add(note.getId());
+                        }
+                        // the notes may have moved a bit while the page was being read
+                        int from = Math.max(start - PAGE_SIZE, 0);
+                        int to = Math.min(start + 2 * PAGE_SIZE, notes.size());
+                        for (int i = from; i < to; i++) {
+                            if (ids.contains(notes.get(i).getId())) {
+                                notifyItemChanged(i);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public int getItemCount() {
-        try {
-            return Note.count(fragment.getContext());
-        } catch (JSONException e) {
-            e.printStackTrace();
-            return 0;
+        return notes.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return notes.get(position).getId();
+    }
+
+    // removes the selected notes, walking only the selected positions
+    private void removeSelectedItems() {
+        long[] ids = new long[selection.cardinality()];
+        int[] shownAt = new int[ids.length];
+        int count = 0;
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            ids[count] = notes.get(i).getId();
+            shownAt[count++] = i;
         }
+        removeItems(ids, shownAt);
     }
 
-    // removes items at the positions specified in the list
-    public void removeItems(Collection<Integer> positions) {
-        // we need to sort the positions and process them in descending order so that we don't change
-        // the positions of next items when we remove the current one from the list
-        NavigableSet<Integer> positionsSorted = new TreeSet<>(positions);
-        removedNotes = new Stack<>();
-        Iterator<Integer> it = positionsSorted.descendingIterator();
-        while (it.hasNext()) {
-            int position = it.next();
-            Note note = null;
-            try {
-                // delete a note from the list and add it to the removedNotes collection along with its position
-                // (used when un-doing the deletion)
-                note = Note.get(fragment.getContext(), position);
-                removedNotes.push(new Pair<>(position, note));
-                Note.delete(fragment.getContext(), position);
-                notifyItemRemoved(position);
-            } catch (JSONException e) {
-                e.printStackTrace();
-                if (note != null) {
-                    removedNotes.pop();
+    public void removeItem(long id) {
+        // the note is usually shown, unless it doesn't match the query
+        int shownAt = -1;
+        for (int i = 0; i < notes.size() && shownAt == -1; i++) {
+            if (notes.get(i).getId() == id) {
+                shownAt = i;
+            }
+        }
+        removeItems(new long[] { id }, new int[] { shownAt });
+    }
+
+    // removes the notes with the specified ids, shown at the positions in shownAt (-1 for a note
+    // that isn't shown). they are moved to the trash, so that they can be restored until the
+    // Snackbar offering that is hidden
+    private void removeItems(long[] ids, int[] shownAt) {
+        // notes deleted before can't be restored anymore
+        hideDeleteSnackbar();
+        NoteRepository repository = NoteRepository.getInstance(fragment.getContext());
+        // the notes are shown at their positions in the stored list, unless the shown list is
+        // filtered or sorted differently
+        boolean storedOrder = notesOrder == SortIndex.ORDER_MANUAL && query.isEmpty();
+        // the notes to remove along with their positions (used when un-doing the deletion)
+        List<Pair<Integer, Note>> found = new ArrayList<>(ids.length);
+        try {
+            int[] positions = repository.positionsOf(ids, storedOrder ? shownAt : null);
+            for (int i = 0; i < ids.length; i++) {
+                if (positions[i] != -1) {
+                    found.add(new Pair<>(positions[i], shownAt[i] != -1 ? notes.get(shownAt[i]) : repository.get(positions[i])));
                 }
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        if (removedNotes.size() != positionsSorted.size()) {
-            int diff = positionsSorted.size() - removedNotes.size();
+        // the notes are removed in descending order so that we don't change the positions of next
+        // items when we remove the current one from the list
+        Collections.sort(found, new Comparator<Pair<Integer, Note>>() {
+            @Override
+            public int compare(Pair<Integer, Note> a, Pair<Integer, Note> b) {
+                return b.first - a.first;
+            }
+        });
+        removedNotes = new Stack<>();
+        Note.Editor editor = Note.edit(fragment.getContext());
+        for (Pair<Integer, Note> note : found) {
+            removedNotes.push(note);
+            editor.trash(note.first);
+        }
+        // delete all notes with a single write. the shown list is updated once the change is
+        // compared with it (see updateNotes)
+        try {
+            editor.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            removedNotes.clear();
+        }
+        if (removedNotes.size() != ids.length) {
+            int diff = ids.length - removedNotes.size();
             Toast.makeText(fragment.getContext(), fragment.getResources().getQuantityString(R.plurals.toast_delete_failed, diff), Toast.LENGTH_LONG).show();
         }
         if (!removedNotes.empty()) {
             // show confirmation if any notes were deleted
             showDeleteSnackbar();
         }
-        if (getItemCount() == 0) {
-            // if there are no notes left, show "No notes" on the fragment background
-            fragment.showBackgroundHint(true);
-        }
-    }
-
-    public void removeItem(int position) {
-        removeItems(Collections.singletonList(position));
     }
 
-    // un-does the deleteion of notes by restoring them from the removedNotes collection
+    // un-does the deleteion of notes by restoring them from the trash
     public void undoRemoveItems() {
-        while (!removedNotes.empty()) {
-            Pair<Integer, Note> top = removedNotes.pop();
-            try {
-                Note.insert(fragment.getContext(), top.first, top.second);
-                notifyItemInserted(top.first);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+        // the notes were removed in descending order, so restoring them from the top of the stack
+        // inserts them in ascending order, each at its original position
+        Note.Editor editor = Note.edit(fragment.getContext());
+        for (int i = removedNotes.size() - 1; i >= 0; i--) {
+            editor.restore(removedNotes.get(i).first, removedNotes.get(i).second);
         }
-        if (!removedNotes.empty()) {
+        try {
+            editor.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
             Toast.makeText(fragment.getContext(), fragment.getResources().getQuantityString(R.plurals.toast_restore_failed, removedNotes.size()), Toast.LENGTH_LONG).show();
             showDeleteSnackbar();
+            return;
         }
+        removedNotes.clear();
     }
 
-    public void afterSave(int position) {
-        lastSaved = position;
-        notifyItemChanged(position);
+    // highlights the note with the specified id when it's shown after it was saved
+    public void afterSave(long id) {
+        lastSaved = id;
+    }
+
+    // moves the dragged note on screen, without changing the stored list
+    public void dragItem(int from, int to) {
+        if (draggedNote == -1) {
+            draggedNote = notes.get(from).getId();
+            // the shown list may be in use by a list update, so the note is moved in a copy
+            notes = new ArrayList<>(notes);
+        }
+        notes.add(to, notes.remove(from));
+        // the selection moves along with the notes
+        boolean selected = selection.get(from);
+        int step = from < to ? 1 : -1;
+        for (int i = from; i != to; i += step) {
+            selection.set(i, selection.get(i + step));
+        }
+        selection.set(to, selected);
+        dragTo = to;
+        notifyItemMoved(from, to);
     }
 
-    // update the stored note list when an item is moved
-    public void moveItem(int from, int to) {
+    // update the stored note list with a single move when the dragged note is dropped
+    public void dropItem() {
+        long id = draggedNote;
+        int to = dragTo;
+        draggedNote = -1;
+        dragTo = -1;
         try {
-            Note.move(fragment.getContext(), from, to);
-            notifyItemMoved(from, to);
-        } catch (JSONException e) {
+            int from = Note.indexOf(fragment.getContext(), id);
+            if (from != to) {
+                Note.move(fragment.getContext(), from, to);
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
             e.printStackTrace();
         }
+        // compare the shown notes with the stored list again, in case the move failed or other
+        // changes were made during the drag
+        updateNotes();
     }
 
-    // toggle whether a note is currently selected
-    public void toggleSelection(int pos) {
+    // toggle whether the note at the specified position is currently selected
+    public void toggleSelection(int position) {
         if (actionMode == null) {
             // notify the fragment that it should enter selection mode
             actionMode = fragment.onStartSelection(selectionModeCallback);
         }
-        if (selectedNotes.get(pos, false)) {
-            selectedNotes.delete(pos);
-        } else {
-            selectedNotes.put(pos, true);
+        selection.flip(position);
+        selectionAnchor = notes.get(position).getId();
+        notifyItemChanged(position);
+        afterSelectionChange();
+    }
+
+    // selects the notes from the one selected or unselected last up to the one at the specified
+    // position, or just that one if the other one isn't shown anymore
+    public void selectRange(int position) {
+        int anchor = -1;
+        for (int i = 0; i < notes.size() && anchor == -1 && selectionAnchor != -1; i++) {
+            if (notes.get(i).getId() == selectionAnchor) {
+                anchor = i;
+            }
         }
-        if (selectedNotes.size() == 0) {
+        if (anchor == -1) {
+            toggleSelection(position);
+            return;
+        }
+        int from = Math.min(anchor, position);
+        int to = Math.max(anchor, position) + 1;
+        selection.set(from, to);
+        selectionAnchor = notes.get(position).getId();
+        notifyItemRangeChanged(from, to - from);
+        afterSelectionChange();
+    }
+
+    public void selectAll() {
+        selection.set(0, notes.size());
+        notifyItemRangeChanged(0, notes.size());
+        afterSelectionChange();
+    }
+
+    public void invertSelection() {
+        selection.flip(0, notes.size());
+        notifyItemRangeChanged(0, notes.size());
+        afterSelectionChange();
+    }
+
+    // leaves selection mode once nothing is selected anymore
+    private void afterSelectionChange() {
+        if (selection.isEmpty()) {
             actionMode.finish();
         } else {
             updateSelectionTitle();
         }
-        notifyItemChanged(pos);
     }
 
-    // returns the positions of currently selected notes
-    public List<Integer> getSelection() {
-        List<Integer> items = new ArrayList<>(selectedNotes.size());
-        for (int i = 0; i < selectedNotes.size(); i++) {
-            items.add(selectedNotes.keyAt(i));
+    // moves the selection over to the new list of notes before it's shown. notes that aren't in it
+    // anymore are unselected
+    private void remapSelection(List<Note> newNotes) {
+        if (selection.isEmpty()) {
+            return;
+        }
+        long[] ids = getSelection();
+        selection = new BitSet(newNotes.size());
+        for (int i = 0; i < newNotes.size(); i++) {
+            if (Arrays.binarySearch(ids, newNotes.get(i).getId()) >= 0) {
+                selection.set(i);
+            }
+        }
+    }
+
+    // returns the sorted ids of currently selected notes
+    public long[] getSelection() {
+        long[] ids = new long[selection.cardinality()];
+        int count = 0;
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            ids[count++] = notes.get(i).getId();
         }
-        return items;
+        Arrays.sort(ids);
+        return ids;
     }
 
 }
@@ -0,0 +1,152 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// export and import of all notes as JSON Lines: one json object per line, with the id, title, text
+// and dates of a note (see Note.writeJSON). both go through the file one note at a time and through
+// the repository a batch of notes at a time, so they never hold more than a batch of texts in
+// memory, and an import writes the store once per batch instead of once per note
+public class NoteBackup {
+
+    public static final String MIME_TYPE = "application/x-ndjson";
+    public static final String FILE_NAME = "notes.jsonl";
+
+    // a batch ends after this many notes, or after this many chars of text, whichever comes first
+    private static final int BATCH_NOTES = 500;
+    private static final int BATCH_CHARS = 4 * 1024 * 1024;
+
+    // called on the thread doing the export or import after every batch
+    public interface ProgressListener {
+        // done out of total notes (export) or bytes (import). total is -1 if it isn't known
+        void onProgress(long done, long total);
+    }
+
+    private NoteBackup() {
+    }
+
+    // writes all notes in list order and returns how many were written. the stream isn't closed
+    public static int exportNotes(Context context, OutputStream out, ProgressListener listener) throws IOException {
+        NoteRepository repository = NoteRepository.getInstance(context);
+        // only the ids and whatever the list keeps in memory anyway, the texts are read per batch
+        List<Note> notes = repository.getAll();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        int written = 0;
+        for (int start = 0; start < notes.size(); start += BATCH_NOTES) {
+            List<Note> batch = repository.getFull(notes.subList(start, Math.min(start + BATCH_NOTES, notes.size())));
+            for (Note note : batch) {
+                // a writer per line, since a JsonWriter only writes a single value
+                JsonWriter json = new JsonWriter(writer);
+                note.writeJSON(json);
+                writer.write('\n');
+            }
+            written += batch.size();
+            listener.onProgress(Math.min(start + BATCH_NOTES, notes.size()), notes.size());
+        }
+        writer.flush();
+        return written;
+    }
+
+    // adds the notes in the stream to the end of the list and returns how many were added. notes
+    // with the id of a note that is already in the list get a new one, so importing never replaces
+    // a note. size is the length of the stream in bytes, or -1 if it isn't known. if a line can't
+    // be read, the notes before it stay imported and the error is thrown after adding them
+    public static int importNotes(Context context, InputStream in, long size, ProgressListener listener) throws IOException {
+        NoteRepository repository = NoteRepository.getInstance(context);
+        Set<Long> ids = new HashSet<>();
+        for (Note note : repository.getAll()) {
+            ids.add(note.getId());
+        }
+        CountingInputStream counter = new CountingInputStream(in);
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(counter, "UTF-8")));
+        // JSON Lines are a sequence of top-level values, which only a lenient reader accepts
+        reader.setLenient(true);
+        List<Note> batch = new ArrayList<>();
+        long batchChars = 0;
+        int imported = 0;
+        IOException error = null;
+        while (true) {
+            Note note;
+            try {
+                if (reader.peek() == JsonToken.END_DOCUMENT) {
+                    break;
+                }
+                note = Note.readJSON(reader, true);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                error = new IOException("can't read note " + (imported + batch.size() + 1), e);
+                break;
+            }
+            if (!ids.add(note.getId())) {
+                note = new Note(Note.newId(), note.getText(), note.getTitle(), note.getDateCreated(), note.getDate());
+                ids.add(note.getId());
+            }
+            batch.add(note);
+            batchChars += note.getText().length();
+            if (batch.size() >= BATCH_NOTES || batchChars >= BATCH_CHARS) {
+                repository.appendAll(batch);
+                imported += batch.size();
+                batch.clear();
+                batchChars = 0;
+                listener.onProgress(counter.count, size);
+            }
+        }
+        repository.appendAll(batch);
+        imported += batch.size();
+        listener.onProgress(counter.count, size);
+        if (error != null) {
+            throw error;
+        }
+        return imported;
+    }
+
+    // counts the bytes read through it, for the progress of an import
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+}
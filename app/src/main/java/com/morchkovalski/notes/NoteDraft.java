@@ -0,0 +1,413 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// the unsaved changes to a note open in the editor, kept in a file so they survive the app being
+// killed. the file is a log of splices (offset, number of removed chars, inserted text) on top of
+// the saved note, and every checkpoint only appends the splices made since the previous one, so it
+// costs about as many bytes as were typed. once the log is much bigger than the note, it's replaced
+// by the whole edited title and text (compacted). the file is deleted when the note is saved or the
+// changes are discarded
+public class NoteDraft {
+
+    public static final String DRAFTS_DIR = "drafts";
+    public static final int FIELD_TITLE = 0;
+    public static final int FIELD_TEXT = 1;
+
+    private static final String TAG = "NoteDraft";
+    // version 1 had no checksums in its splices
+    static final int FORMAT_VERSION = 2;
+    private static final String DRAFT_SUFFIX = ".draft";
+    private static final int HEADER_SIZE = 20;
+    // field, offset, removed length and inserted length, before the inserted text
+    private static final int SPLICE_HEADER_SIZE = 13;
+    // the log is never compacted while it's smaller than this
+    private static final long COMPACT_MIN_SIZE = 64 * 1024;
+
+    // drafts are written on a single thread in the order they were requested, so a checkpoint
+    // never overtakes the one before it or a discard
+    private static final Executor writeExecutor = Executors.newSingleThreadExecutor();
+
+    public interface OnRestoredListener {
+        // called on the main thread with the title and text of the note with the saved changes
+        // applied, or with null if there are no changes
+        void onRestored(String[] restored);
+    }
+
+    // replacement of removed chars at offset in a field with the inserted text
+    private static class Splice {
+        final int field;
+        final int offset;
+        final int removed;
+        final StringBuilder inserted;
+
+        Splice(int field, int offset, int removed, CharSequence inserted) {
+            this.field = field;
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = new StringBuilder(inserted);
+        }
+    }
+
+    private final Context context;
+    private final File file;
+    private final long noteId;
+    private final long noteDate;
+    // lengths of the saved title and text, which a compacted log replaces
+    private final int noteTitleLength;
+    private final int noteTextLength;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // splices made since the last checkpoint, only used on the main thread
+    private List<Splice> pending = new ArrayList<>();
+    private boolean discarded = false;
+    // size of the file, 0 if it doesn't exist yet, or -1 if a write failed and it has to be written
+    // from scratch. only written on writeExecutor
+    private volatile long size = 0;
+
+    // the draft of the saved version of a note. a draft of an older version is discarded
+    public NoteDraft(Context context, Note note) {
+        this.context = context.getApplicationContext();
+        file = new File(new File(context.getFilesDir(), DRAFTS_DIR), note.getId() + DRAFT_SUFFIX);
+        noteId = note.getId();
+        noteDate = note.getDateMillis();
+        noteTitleLength = note.getTitle().length();
+        noteTextLength = note.getText().length();
+    }
+
+    // deletes the drafts of the notes with the specified ids, after the notes were deleted
+    public static void delete(Context context, Collection<Long> ids) {
+        final File dir = new File(context.getFilesDir(), DRAFTS_DIR);
+        final List<Long> deleted = new ArrayList<>(ids);
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Long id : deleted) {
+                    new File(dir, id + DRAFT_SUFFIX).delete();
+                }
+            }
+        });
+    }
+
+    // reads the saved changes on writeExecutor and passes them to the listener, so the draft is
+    // only read and truncated once the writes requested before (e.g. by the editor being paused)
+    // are done. the fields shouldn't be editable until then, see watch
+    public void restore(final Note note, final OnRestoredListener listener) {
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String[] restored = read(note);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRestored(restored);
+                    }
+                });
+            }
+        });
+    }
+
+    // returns the title and text of the note with the saved changes applied, or null if there are
+    // no changes. a record cut short when the app was killed, or one that doesn't match its checksum,
+    // is dropped with everything after it. runs on writeExecutor, or directly in the tests
+    String[] read(Note note) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        StringBuilder[] fields = {new StringBuilder(note.getTitle()), new StringBuilder(note.getText())};
+        // offset of the end of the last splice that was applied
+        long valid = 0;
+        int version = 0;
+        try {
+            try {
+                version = in.readInt();
+                if (version != FORMAT_VERSION && version != 1 || in.readLong() != noteId || in.readLong() != noteDate) {
+                    // the note was saved since, or it's a different note
+                    in.close();
+                    delete();
+                    return null;
+                }
+                valid = HEADER_SIZE;
+                while (true) {
+                    int field = in.read();
+                    if (field == -1) {
+                        break;
+                    }
+                    int offset = in.readInt();
+                    int removed = in.readInt();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    if (version != 1 && in.readInt() != checksum(field, offset, removed, bytes)) {
+                        Log.w(TAG, "dropping a splice with a bad checksum at offset " + valid + " of " + file);
+                        break;
+                    }
+                    fields[field].replace(offset, offset + removed, new String(bytes, "UTF-8"));
+                    valid += SPLICE_HEADER_SIZE + bytes.length + (version != 1 ? 4 : 0);
+                }
+            } catch (EOFException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                Log.w(TAG, "dropping a broken splice at offset " + valid + " of " + file, e);
+            } finally {
+                in.close();
+            }
+            if (valid < file.length()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            delete();
+            return null;
+        }
+        if (valid == 0) {
+            // not even the header was written
+            delete();
+            return null;
+        }
+        // a draft of version 1 is written again in the current format by the next checkpoint, since
+        // splices can't be appended to it
+        size = version == FORMAT_VERSION ? valid : -1;
+        return new String[] {fields[FIELD_TITLE].toString(), fields[FIELD_TEXT].toString()};
+    }
+
+    // returns a TextWatcher recording the changes to the specified field. it has to be added after
+    // the field is set to the saved note or to the restored draft, i.e. not before the listener
+    // passed to restore was called
+    public TextWatcher watch(final int field) {
+        return new TextWatcher() {
+            // the old text if all of it is being replaced by text of the same length, e.g. when an
+            // EditText restores its state, in which case the change may be no change at all
+            private String replaced = null;
+
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                replaced = start == 0 && count > 0 && count == s.length() && after == count ? s.toString() : null;
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (replaced != null && replaced.contentEquals(s)) {
+                    replaced = null;
+                    return;
+                }
+                replaced = null;
+                add(field, start, before, s.subSequence(start, start + count));
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+            }
+        };
+    }
+
+    // typing and deleting what was just typed extend the last splice instead of adding new ones
+    private void add(int field, int offset, int removed, CharSequence inserted) {
+        if (discarded) {
+            return;
+        }
+        Splice last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+        if (last != null && last.field == field) {
+            int lastEnd = last.offset + last.inserted.length();
+            if (offset >= last.offset && offset + removed == lastEnd) {
+                last.inserted.setLength(offset - last.offset);
+                last.inserted.append(inserted);
+                return;
+            }
+        }
+        pending.add(new Splice(field, offset, removed, inserted));
+    }
+
+    // true if there are changes that aren't written yet
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    // writes the changes made since the last checkpoint on a background thread. title and text are
+    // the current contents of the fields, they are only copied if the log is compacted
+    public void checkpoint(CharSequence title, CharSequence text) {
+        if (discarded || pending.isEmpty()) {
+            return;
+        }
+        final List<Splice> splices = pending;
+        pending = new ArrayList<>();
+        long currentSize = size;
+        if (currentSize == -1 || currentSize > COMPACT_MIN_SIZE && currentSize > 4L * (title.length() + text.length())) {
+            // a broken file is written from scratch as well
+            final String titleCopy = title.toString();
+            final String textCopy = text.toString();
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact(titleCopy, textCopy);
+                }
+            });
+        } else {
+            writeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    append(splices);
+                }
+            });
+        }
+    }
+
+    // deletes the draft after the changes were discarded
+    public void discard() {
+        discarded = true;
+        pending.clear();
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                delete();
+            }
+        });
+    }
+
+    // deletes the draft after the changes were saved to the note. the note list is written in the
+    // background too, so the draft is only deleted once that's done
+    public void saved() {
+        discarded = true;
+        pending.clear();
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Note.flush(context, true);
+                delete();
+            }
+        });
+    }
+
+    // runs on writeExecutor
+    private void append(List<Splice> splices) {
+        long oldSize = size;
+        if (oldSize == -1) {
+            // an earlier write failed, the next checkpoint writes everything again
+            return;
+        }
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir);
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            try {
+                if (oldSize == 0) {
+                    writeHeader(out);
+                }
+                for (Splice splice : splices) {
+                    writeSplice(splice.field, splice.offset, splice.removed, splice.inserted.toString(), out);
+                }
+            } finally {
+                out.close();
+            }
+            size = file.length();
+        } catch (IOException e) {
+            e.printStackTrace();
+            size = -1;
+            // cut off whatever part of the splices was written
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(oldSize);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // replaces the log with a single splice per field. runs on writeExecutor
+    private void compact(String title, String text) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir);
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                writeHeader(out);
+                writeSplice(FIELD_TITLE, 0, noteTitleLength, title, out);
+                writeSplice(FIELD_TEXT, 0, noteTextLength, text, out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp + " to " + file);
+            }
+            size = file.length();
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            size = -1;
+        }
+    }
+
+    private void delete() {
+        size = 0;
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "can't delete " + file);
+        }
+    }
+
+    // header layout: version (4 bytes), note id (8 bytes), date of the saved note (8 bytes)
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(noteId);
+        out.writeLong(noteDate);
+    }
+
+    // splice layout: field (1 byte), offset (4 bytes), removed length (4 bytes), then the inserted
+    // text as its UTF-8 length (4 bytes) followed by the UTF-8 bytes, and the CRC32 of all of those
+    // (4 bytes)
+    private static void writeSplice(int field, int offset, int removed, String inserted, DataOutputStream out) throws IOException {
+        byte[] bytes = inserted.getBytes("UTF-8");
+        out.writeByte(field);
+        out.writeInt(offset);
+        out.writeInt(removed);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(checksum(field, offset, removed, bytes));
+    }
+
+    static int checksum(int field, int offset, int removed, byte[] inserted) {
+        ByteBuffer header = ByteBuffer.allocate(SPLICE_HEADER_SIZE);
+        header.put((byte) field).putInt(offset).putInt(removed).putInt(inserted.length);
+        CRC32 crc = new CRC32();
+        crc.update(header.array());
+        crc.update(inserted);
+        return (int) crc.getValue();
+    }
+
+}
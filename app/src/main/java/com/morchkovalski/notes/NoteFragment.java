@@ -3,11 +3,9 @@ package com.morchkovalski.notes;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AlertDialog;
-import android.text.Editable;
-import android.text.TextWatcher;
-import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -19,14 +17,14 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.json.JSONException;
+import java.io.IOException;
 
 
 public class NoteFragment extends Fragment {
 
     public interface OnNoteFragmentActionListener {
-        void onNoteFragmentSaved(int position);
-        void onNoteFragmentRemove(int position);
+        void onNoteFragmentSaved(long id);
+        void onNoteFragmentRemove(long id);
     }
 
     // the object which should get notified when the note is saved or deleted (the parent activity)
@@ -35,29 +33,46 @@ public class NoteFragment extends Fragment {
     public static final String TAG = "note_fragment";
 
     private static final String ARG_NOTE = "note";
-    private int notePosition = 0;
+    // how often unsaved changes are written to the draft while the editor is open
+    private static final long AUTOSAVE_INTERVAL = 5000;
+    private long noteId = -1;
 
     public NoteFragment() {
     }
 
-    public static NoteFragment newInstance(int notePosition) {
+    public static NoteFragment newInstance(long noteId) {
         NoteFragment fragment = new NoteFragment();
         Bundle args = new Bundle();
-        args.putInt(ARG_NOTE, notePosition);
+        args.putLong(ARG_NOTE, noteId);
         fragment.setArguments(args);
         return fragment;
     }
 
     private Context applicationContext;
+    // the note as it was when the editor was opened, null if it couldn't be read
+    private Note note = null;
     private EditText txtTitle, txtText;
-    private String origTitle = "";
-    private String origText = "";
+    // track whether the title and text differ from the note, so they don't have to be compared
+    // in full after every keystroke
+    private EditTracker titleTracker, textTracker;
+    // true if the title or text differ from the note, which shows the "save" button
+    private boolean edited = false;
+    // the unsaved changes, null if the note couldn't be read
+    private NoteDraft draft = null;
+    private final Handler handler = new Handler();
+    private final Runnable autosaveTask = new Runnable() {
+        @Override
+        public void run() {
+            saveDraft();
+            handler.postDelayed(this, AUTOSAVE_INTERVAL);
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         if (getArguments() != null) {
-            notePosition = getArguments().getInt(ARG_NOTE);
+            noteId = getArguments().getLong(ARG_NOTE);
         }
         setHasOptionsMenu(true);
         applicationContext = getActivity().getApplicationContext();
@@ -67,12 +82,14 @@ public class NoteFragment extends Fragment {
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         final View view = inflater.inflate(R.layout.fragment_note, container, false);
-        Note note = null;
         try {
-            note = Note.get(view.getContext(), notePosition);
-            origText = note.getText();
-            origTitle = note.getTitle();
-        } catch (JSONException e) {
+            int position = Note.indexOf(view.getContext(), noteId);
+            if (position == -1) {
+                throw new IOException("no note with id " + noteId);
+            }
+            note = Note.getFull(view.getContext(), position);
+        } catch (IOException e) {
+            e.printStackTrace();
             Toast.makeText(applicationContext, R.string.toast_read_failed, Toast.LENGTH_LONG).show();
         }
 
@@ -81,38 +98,90 @@ public class NoteFragment extends Fragment {
         txtText = (EditText) view.findViewById(R.id.txtText);
 
         if (note != null) {
-            txtDate.setText(DateUtils.formatDateTime(getContext(), note.getDate().getTime(), DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_YEAR));
+            txtDate.setText(NoteRow.formatDate(getContext(), note.getDateMillis()));
             txtTitle.setText(note.getTitle());
             txtText.setText(note.getText());
         }
 
-        TextWatcher textWatcher = new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
-            }
-
-            @Override
-            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
-                // update the action bar to show the "save" button when the note is modified
-                getActivity().supportInvalidateOptionsMenu();
-            }
-
+        EditTracker.OnEditedChangeListener onEditedChange = new EditTracker.OnEditedChangeListener() {
             @Override
-            public void afterTextChanged(Editable editable) {
+            public void onEditedChanged(boolean trackerEdited) {
+                boolean nowEdited = titleTracker.isEdited() || textTracker.isEdited();
+                if (nowEdited != edited) {
+                    edited = nowEdited;
+                    // update the action bar to show or hide the "save" button
+                    getActivity().supportInvalidateOptionsMenu();
+                }
             }
         };
+        titleTracker = new EditTracker(note != null ? note.getTitle() : "", onEditedChange);
+        textTracker = new EditTracker(note != null ? note.getText() : "", onEditedChange);
+        edited = false;
+
+        txtTitle.addTextChangedListener(titleTracker);
+        txtText.addTextChangedListener(textTracker);
 
-        txtTitle.addTextChangedListener(textWatcher);
-        txtText.addTextChangedListener(textWatcher);
+        if (note != null) {
+            // show the changes that weren't saved when the editor was last closed. the fields can't
+            // be edited until the draft is read, since those changes wouldn't be recorded
+            final NoteDraft restoring = new NoteDraft(applicationContext, note);
+            draft = restoring;
+            txtTitle.setEnabled(false);
+            txtText.setEnabled(false);
+            restoring.restore(note, new NoteDraft.OnRestoredListener() {
+                @Override
+                public void onRestored(String[] restored) {
+                    if (draft != restoring || getView() != view) {
+                        // the view was recreated in the meantime, which restores the draft again
+                        return;
+                    }
+                    if (restored != null) {
+                        txtTitle.setText(restored[0]);
+                        txtText.setText(restored[1]);
+                    }
+                    txtTitle.addTextChangedListener(restoring.watch(NoteDraft.FIELD_TITLE));
+                    txtText.addTextChangedListener(restoring.watch(NoteDraft.FIELD_TEXT));
+                    txtTitle.setEnabled(true);
+                    txtText.setEnabled(true);
+                }
+            });
+        }
 
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        handler.postDelayed(autosaveTask, AUTOSAVE_INTERVAL);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(autosaveTask);
+        // the app may be killed while it's in the background
+        saveDraft();
+    }
+
+    // writes the changes made since the last autosave to the draft, in the background
+    private void saveDraft() {
+        if (draft != null) {
+            draft.checkpoint(txtTitle.getText(), txtText.getText());
+        }
+    }
+
+    // deletes the draft once the user chose to throw the changes away
+    private void discardDraft() {
+        if (draft != null) {
+            draft.discard();
+        }
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.menu_note, menu);
         // show "save" button if the note was modified
-        boolean edited = !txtTitle.getText().toString().equals(origTitle) || !txtText.getText().toString().equals(origText);
         menu.findItem(R.id.action_save).setVisible(edited);
     }
 
@@ -135,17 +204,29 @@ public class NoteFragment extends Fragment {
                     @Override
                     public void run() {
                         getActivity().getSupportFragmentManager().popBackStackImmediate();
-                        onNoteFragmentActionListener.onNoteFragmentRemove(notePosition);
+                        onNoteFragmentActionListener.onNoteFragmentRemove(noteId);
                     }
                 });
                 return true;
             case (R.id.action_save):
                 closeKeyboard();
                 try {
-                    Note.replace(getContext(), notePosition, new Note (txtText.getText().toString(), txtTitle.getText().toString()));
+                    String text = txtText.getText().toString();
+                    String title = txtTitle.getText().toString();
+                    Note saved = note != null ? note.edited(text, title) : new Note(text, title);
+                    int position = Note.indexOf(getContext(), noteId);
+                    if (position != -1) {
+                        Note.replace(getContext(), position, saved);
+                    } else {
+                        // the note was deleted while it was open, save it as a new one
+                        Note.insert(getContext(), 0, saved);
+                    }
+                    if (draft != null) {
+                        draft.saved();
+                    }
                     getActivity().getSupportFragmentManager().popBackStack();
-                    onNoteFragmentActionListener.onNoteFragmentSaved(notePosition);
-                } catch (JSONException e) {
+                    onNoteFragmentActionListener.onNoteFragmentSaved(saved.getId());
+                } catch (IOException e) {
                     e.printStackTrace();
                     Toast.makeText(applicationContext, R.string.toast_save_failed, Toast.LENGTH_LONG).show();
                 }
@@ -158,20 +239,21 @@ public class NoteFragment extends Fragment {
     // if the note was modified, shows a dialog asking the user if they want to discard the changes,
     // and runs onYes if they confirm. if the note wasn't modified, runs onYes right away
     public void showExitDialog(final Runnable onYes) {
-        boolean edited = !txtTitle.getText().toString().equals(origTitle) || !txtText.getText().toString().equals(origText);
         if (edited) {
             new AlertDialog.Builder(getContext())
-                    .setMessage("Discard changes?")
+                    .setMessage(R.string.dialog_discard_changes)
                     .setIcon(android.R.drawable.ic_dialog_alert)
                     .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {
+                            discardDraft();
                             onYes.run();
                         }
                     })
                     .setNegativeButton(android.R.string.no, null)
                     .show();
         } else {
+            discardDraft();
             onYes.run();
         }
     }
@@ -1,42 +1,75 @@
 package com.morchkovalski.notes;
 
+import android.app.Activity;
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.view.ActionMode;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.json.JSONException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 
 public class NoteListFragment extends Fragment {
 
     public interface OnNoteListFragmentActionListener {
-        void onNoteAdd();
-        void onNoteShow(int position);
+        void onNoteAdd(long id);
+        void onNoteShow(long id);
     }
 
     private OnNoteListFragmentActionListener onNoteListFragmentActionListener;
 
     public static final String TAG = "note_list_fragment";
 
+    private static final int REQUEST_EXPORT = 1;
+    private static final int REQUEST_IMPORT = 2;
+    // the progress bar of an export or import goes from 0 to this
+    private static final int TRANSFER_PROGRESS_MAX = 1000;
+    // the order the notes are shown in (see SortIndex), kept in the notes' preferences
+    private static final String PREF_SORT_ORDER = "sort_order";
+    // the menu items choosing the order, by order
+    private static final int[] SORT_ACTIONS = { R.id.action_sort_manual, R.id.action_sort_edited, R.id.action_sort_title, R.id.action_sort_created };
+
+    // exports and imports run on this thread
+    private static final Executor transferExecutor = Executors.newSingleThreadExecutor();
+
     public NoteListFragment() {
     }
 
     private Context applicationContext;
     private NoteAdapter noteAdapter;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // true while an export or import is running. the fragment is retained, so this survives
+    // rotation
+    private boolean transferRunning = false;
+    // progress of the running export or import, out of TRANSFER_PROGRESS_MAX, or -1 if unknown
+    private int transferProgress = -1;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -45,6 +78,11 @@ public class NoteListFragment extends Fragment {
         setRetainInstance(true);
         applicationContext = getActivity().getApplicationContext();
         noteAdapter = new NoteAdapter(this);
+        noteAdapter.setOrder(getPreferences().getInt(PREF_SORT_ORDER, SortIndex.ORDER_MANUAL));
+    }
+
+    private SharedPreferences getPreferences() {
+        return applicationContext.getSharedPreferences(Note.PREFS_FILE, Context.MODE_PRIVATE);
     }
 
     @Override
@@ -59,12 +97,59 @@ public class NoteListFragment extends Fragment {
         recNotes.setLayoutManager(lm);
         recNotes.setAdapter(noteAdapter);
 
+        // until the notes are read, a progress bar is shown instead of "No notes"
+        view.findViewById(R.id.progLoading).setVisibility(noteAdapter.isLoaded() ? View.GONE : View.VISIBLE);
+        view.findViewById(R.id.txtNoNotes).setVisibility(noteAdapter.isLoaded() && noteAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+        showTransferProgress((ProgressBar) view.findViewById(R.id.progTransfer));
+
         return view;
     }
 
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.menu_main, menu);
+        // the files are picked with the storage access framework, which needs KitKat
+        boolean canPickFiles = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        menu.findItem(R.id.action_export).setVisible(canPickFiles);
+        menu.findItem(R.id.action_import).setVisible(canPickFiles);
+        menu.findItem(SORT_ACTIONS[noteAdapter.getOrder()]).setChecked(true);
+
+        // filter the note list as the search query is typed
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        String query = noteAdapter.getQuery();
+        if (query.length() > 0) {
+            // the menu was created again (e.g. after rotation) while searching
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(query, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // the list is already filtered, just hide the keyboard
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String query) {
+                noteAdapter.setQuery(query);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                noteAdapter.hideDeleteSnackbar();
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                noteAdapter.setQuery("");
+                return true;
+            }
+        });
     }
 
     @Override
@@ -74,19 +159,160 @@ public class NoteListFragment extends Fragment {
         switch (id) {
             case (R.id.action_add):
                 try {
-                    Note.add(getActivity());
-                    noteAdapter.notifyItemInserted(0);
-                    onNoteListFragmentActionListener.onNoteAdd();
-                } catch (JSONException e) {
+                    Note note = Note.add(getActivity());
+                    onNoteListFragmentActionListener.onNoteAdd(note.getId());
+                } catch (IOException e) {
                     e.printStackTrace();
                     Toast.makeText(applicationContext, R.string.toast_add_failed, Toast.LENGTH_LONG).show();
                 }
                 return true;
+            case (R.id.action_export):
+            case (R.id.action_import):
+                if (transferRunning) {
+                    Toast.makeText(applicationContext, R.string.toast_transfer_running, Toast.LENGTH_SHORT).show();
+                } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    pickFile(id == R.id.action_export);
+                }
+                return true;
+            case (R.id.action_sort_manual):
+            case (R.id.action_sort_edited):
+            case (R.id.action_sort_title):
+            case (R.id.action_sort_created):
+                for (int order = 0; order < SORT_ACTIONS.length; order++) {
+                    if (SORT_ACTIONS[order] == id) {
+                        item.setChecked(true);
+                        noteAdapter.setOrder(order);
+                        getPreferences().edit().putInt(PREF_SORT_ORDER, order).apply();
+                    }
+                }
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
+    // only called on KitKat and later
+    private void pickFile(boolean export) {
+        Intent intent = new Intent(export ? Intent.ACTION_CREATE_DOCUMENT : Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        if (export) {
+            intent.setType(NoteBackup.MIME_TYPE);
+            intent.putExtra(Intent.EXTRA_TITLE, NoteBackup.FILE_NAME);
+        } else {
+            // the MIME type of a .jsonl file depends on where it came from
+            intent.setType("*/*");
+        }
+        startActivityForResult(intent, export ? REQUEST_EXPORT : REQUEST_IMPORT);
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if ((requestCode == REQUEST_EXPORT || requestCode == REQUEST_IMPORT) && resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+            startTransfer(requestCode == REQUEST_EXPORT, data.getData());
+        } else {
+            super.onActivityResult(requestCode, resultCode, data);
+        }
+    }
+
+    // exports the notes to, or imports notes from, the file on a background thread, showing the
+    // progress and then the result
+    private void startTransfer(final boolean export, final Uri uri) {
+        transferRunning = true;
+        transferProgress = -1;
+        showTransferProgress(null);
+        final NoteBackup.ProgressListener listener = new NoteBackup.ProgressListener() {
+            @Override
+            public void onProgress(final long done, final long total) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        transferProgress = total > 0 ? (int) (Math.min(done, total) * TRANSFER_PROGRESS_MAX / total) : -1;
+                        showTransferProgress(null);
+                    }
+                });
+            }
+        };
+        transferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int count = -1;
+                try {
+                    count = export ? exportNotes(uri, listener) : importNotes(uri, listener);
+                } catch (IOException | RuntimeException e) {
+                    // a content provider may throw e.g. a SecurityException as well
+                    e.printStackTrace();
+                }
+                final int result = count;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        transferRunning = false;
+                        showTransferProgress(null);
+                        if (result == -1) {
+                            Toast.makeText(applicationContext, export ? R.string.toast_export_failed : R.string.toast_import_failed, Toast.LENGTH_LONG).show();
+                        } else {
+                            int message = export ? R.plurals.toast_notes_exported : R.plurals.toast_notes_imported;
+                            Toast.makeText(applicationContext, applicationContext.getResources().getQuantityString(message, result, result), Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // runs on transferExecutor
+    private int exportNotes(Uri uri, NoteBackup.ProgressListener listener) throws IOException {
+        OutputStream out = applicationContext.getContentResolver().openOutputStream(uri, "w");
+        if (out == null) {
+            throw new IOException("can't open " + uri);
+        }
+        try {
+            return NoteBackup.exportNotes(applicationContext, out, listener);
+        } finally {
+            out.close();
+        }
+    }
+
+    // runs on transferExecutor
+    private int importNotes(Uri uri, NoteBackup.ProgressListener listener) throws IOException {
+        long size = -1;
+        Cursor cursor = applicationContext.getContentResolver().query(uri, new String[] { OpenableColumns.SIZE }, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    size = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        InputStream in = applicationContext.getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("can't open " + uri);
+        }
+        try {
+            return NoteBackup.importNotes(applicationContext, in, size, listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    // shows the progress of the running export or import, if any, on the specified progress bar or
+    // on the one in the fragment's view
+    private void showTransferProgress(ProgressBar progTransfer) {
+        if (progTransfer == null) {
+            if (getView() == null) {
+                // the view is created again later, and gets the current progress then
+                return;
+            }
+            progTransfer = (ProgressBar) getView().findViewById(R.id.progTransfer);
+        }
+        progTransfer.setVisibility(transferRunning ? View.VISIBLE : View.GONE);
+        progTransfer.setIndeterminate(transferProgress == -1);
+        progTransfer.setMax(TRANSFER_PROGRESS_MAX);
+        progTransfer.setProgress(Math.max(transferProgress, 0));
+    }
+
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
@@ -117,25 +343,43 @@ public class NoteListFragment extends Fragment {
         }
     }
 
-    public void onNoteClicked(int position) {
-        onNoteListFragmentActionListener.onNoteShow(position);
+    public void onNoteClicked(long id) {
+        onNoteListFragmentActionListener.onNoteShow(id);
     }
 
     // called when a note is saved in the editor (NoteFragment)
-    public void onNoteFragmentSaved(int position) {
-        noteAdapter.afterSave(position);
+    public void onNoteFragmentSaved(long id) {
+        noteAdapter.afterSave(id);
         Toast.makeText(applicationContext, R.string.toast_note_saved, Toast.LENGTH_SHORT).show();
     }
 
     // called when a note is deleted in the editor (NoteFragment)
-    public void onNoteFragmentRemove(int position) {
-        noteAdapter.removeItem(position);
+    public void onNoteFragmentRemove(long id) {
+        noteAdapter.removeItem(id);
+    }
+
+    // called when the notes were read and shown for the first time
+    public void onNotesLoaded() {
+        if (getActivity() == null) {
+            // the list was updated while the fragment was detached
+            return;
+        }
+        View progLoading = getActivity().findViewById(R.id.progLoading);
+        if (progLoading != null) {
+            progLoading.setVisibility(View.GONE);
+        }
+        StartupTrace.contentShown(getActivity());
     }
 
     // shows or hides the text "No notes" on the fragment background
     public void showBackgroundHint(boolean show) {
+        if (getActivity() == null) {
+            // the list was updated while the fragment was detached
+            return;
+        }
         TextView txtNoNotes = (TextView) getActivity().findViewById(R.id.txtNoNotes);
         if (txtNoNotes != null) {
+            txtNoNotes.setText(noteAdapter.getQuery().length() > 0 ? R.string.hint_no_results : R.string.hint_no_notes);
             txtNoNotes.setVisibility(show ? View.VISIBLE : View.GONE);
         }
     }
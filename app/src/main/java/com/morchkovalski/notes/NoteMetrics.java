@@ -0,0 +1,284 @@
+package com.morchkovalski.notes;
+
+import android.os.Looper;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// counts and timings of the storage operations since the process started, printed by
+// "adb shell dumpsys activity com.morchkovalski.notes" (see MainActivity.dump). recording a call
+// takes a few atomic increments, so it's always on. the timers are grouped by where the time goes:
+// the calls the UI makes, parsing (reading from a store), serializing and writing (to a store),
+// binding list rows, and starting the app (see StartupTrace)
+public final class NoteMetrics {
+
+    private static final String GROUP_CALL = "call";
+    private static final String GROUP_PARSE = "parse";
+    private static final String GROUP_SERIALIZE = "serialize";
+    private static final String GROUP_WRITE = "write";
+    private static final String GROUP_BIND = "bind";
+    private static final String GROUP_STARTUP = "startup";
+
+    private static final List<Timer> timers = new ArrayList<>();
+
+    public static final Timer NOTE_ADD = new Timer(GROUP_CALL, "Note.add");
+    public static final Timer NOTE_INSERT = new Timer(GROUP_CALL, "Note.insert");
+    public static final Timer NOTE_DELETE = new Timer(GROUP_CALL, "Note.delete");
+    public static final Timer NOTE_REPLACE = new Timer(GROUP_CALL, "Note.replace");
+    public static final Timer NOTE_MOVE = new Timer(GROUP_CALL, "Note.move");
+    public static final Timer NOTE_COMMIT = new Timer(GROUP_CALL, "Note.Editor.commit");
+    public static final Timer NOTE_SAVE_LIST = new Timer(GROUP_CALL, "Note.saveNoteList");
+    public static final Timer NOTE_PURGE_TRASH = new Timer(GROUP_CALL, "Note.purgeTrash");
+    public static final Timer NOTE_FLUSH = new Timer(GROUP_CALL, "Note.flush");
+    public static final Timer NOTE_GET = new Timer(GROUP_CALL, "Note.get");
+    public static final Timer NOTE_GET_FULL = new Timer(GROUP_CALL, "Note.getFull");
+    public static final Timer NOTE_INDEX_OF = new Timer(GROUP_CALL, "Note.indexOf");
+    public static final Timer NOTE_COUNT = new Timer(GROUP_CALL, "Note.count");
+    public static final Timer REPOSITORY_GET_ALL = new Timer(GROUP_CALL, "NoteRepository.getAll");
+    public static final Timer REPOSITORY_GET_CONTENTS = new Timer(GROUP_CALL, "NoteRepository.getContents");
+    public static final Timer REPOSITORY_SEARCH = new Timer(GROUP_CALL, "NoteRepository.search");
+
+    public static final Timer STORE_LOAD = new Timer(GROUP_PARSE, "NoteStore.load");
+    public static final Timer STORE_LOAD_WITHOUT_CONTENTS = new Timer(GROUP_PARSE, "NoteStore.loadWithoutContents");
+    public static final Timer STORE_LOAD_IDS = new Timer(GROUP_PARSE, "NoteStore.load(ids)");
+    public static final Timer STORE_LOAD_TEXT = new Timer(GROUP_PARSE, "NoteStore.loadText");
+
+    public static final Timer SERIALIZE_PREFS = new Timer(GROUP_SERIALIZE, PrefsNoteStore.NAME);
+    public static final Timer SERIALIZE_JOURNAL = new Timer(GROUP_SERIALIZE, JournalNoteStore.NAME);
+    public static final Timer SERIALIZE_MAPPED = new Timer(GROUP_SERIALIZE, MappedNoteStore.NAME);
+
+    public static final Timer STORE_APPLY = new Timer(GROUP_WRITE, "NoteStore.apply");
+    public static final Timer STORE_REPLACE_ALL = new Timer(GROUP_WRITE, "NoteStore.replaceAll");
+    public static final Timer STORE_CLEAR = new Timer(GROUP_WRITE, "NoteStore.clear");
+    public static final Timer SYNC_JOURNAL = new Timer(GROUP_WRITE, JournalNoteStore.NAME + " fsync");
+
+    public static final Timer BIND_ROW = new Timer(GROUP_BIND, "NoteAdapter.onBindViewHolder");
+
+    public static final Timer STARTUP_PRELOAD = new Timer(GROUP_STARTUP, "NoteRepository.preload");
+    public static final Timer STARTUP_FIRST_FRAME = new Timer(GROUP_STARTUP, "first frame");
+    public static final Timer STARTUP_FIRST_CONTENT = new Timer(GROUP_STARTUP, "first content");
+
+    private static volatile long resetTime = System.currentTimeMillis();
+
+    private NoteMetrics() {
+    }
+
+    // returns the start time to pass to Timer.record
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // returns the number of bytes the process has read and written so far (the rchar and wchar
+    // lines of /proc/self/io), or null if that can't be read. this counts every read and write
+    // call, but not the pages of mapped files
+    public static long[] readIo() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader("/proc/self/io"));
+            try {
+                long[] io = {-1, -1};
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("rchar:")) {
+                        io[0] = Long.parseLong(line.substring("rchar:".length()).trim());
+                    } else if (line.startsWith("wchar:")) {
+                        io[1] = Long.parseLong(line.substring("wchar:".length()).trim());
+                    }
+                }
+                return io[0] != -1 && io[1] != -1 ? io : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isMainThread() {
+        // there is no main looper when the storage layer runs on the JVM in the benchmarks
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null && mainLooper.getThread() == Thread.currentThread();
+    }
+
+    public static void reset() {
+        synchronized (timers) {
+            for (Timer timer : timers) {
+                timer.reset();
+            }
+        }
+        resetTime = System.currentTimeMillis();
+    }
+
+    // prints all timers that recorded anything as a table. times are in milliseconds, and the
+    // percentiles are accurate to 25%
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(String.format(Locale.US, "Note storage metrics, last %d s:",
+                (System.currentTimeMillis() - resetTime) / 1000));
+        writer.print(prefix);
+        writer.println(String.format(Locale.US, "  %-9s %-31s %8s %8s %8s %8s %8s %9s %8s %11s %11s",
+                "group", "operation", "count", "p50", "p90", "p99", "max", "total", "main", "main total", "read/wrote"));
+        synchronized (timers) {
+            for (Timer timer : timers) {
+                long count = timer.all.count();
+                if (count == 0) {
+                    continue;
+                }
+                String io = timer.bytesRead.get() == 0 && timer.bytesWritten.get() == 0 ? ""
+                        : formatBytes(timer.bytesRead.get()) + "/" + formatBytes(timer.bytesWritten.get());
+                writer.print(prefix);
+                writer.println(String.format(Locale.US, "  %-9s %-31s %8d %8.2f %8.2f %8.2f %8.2f %9.1f %8d %11.1f %11s",
+                        timer.group, timer.name, count,
+                        timer.all.percentile(0.5) / 1000.0, timer.all.percentile(0.9) / 1000.0,
+                        timer.all.percentile(0.99) / 1000.0, timer.all.max() / 1000.0, timer.all.sum() / 1000.0,
+                        timer.mainThread.count(), timer.mainThread.sum() / 1000.0, io));
+            }
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 10 * 1024) {
+            return bytes + "B";
+        } else if (bytes < 10 * 1024 * 1024) {
+            return bytes / 1024 + "K";
+        }
+        return bytes / (1024 * 1024) + "M";
+    }
+
+    // the durations of one operation, all of them and the ones on the main thread separately
+    public static final class Timer {
+        private final String group;
+        private final String name;
+        private final Histogram all = new Histogram();
+        // the main thread is blocked for as long as these calls take
+        private final Histogram mainThread = new Histogram();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        // startup times end on the main thread, but it isn't blocked all that time
+        private final boolean countsMainThread;
+
+        private Timer(String group, String name) {
+            this.group = group;
+            this.name = name;
+            countsMainThread = !group.equals(GROUP_STARTUP);
+            synchronized (timers) {
+                timers.add(this);
+            }
+        }
+
+        // records a call that started at the specified time (see NoteMetrics.start)
+        public void record(long start) {
+            long micros = (System.nanoTime() - start) / 1000;
+            all.add(micros);
+            if (countsMainThread && isMainThread()) {
+                mainThread.add(micros);
+            }
+        }
+
+        // records a call and the bytes read and written since startIo (see readIo). the whole
+        // process is counted, so another thread doing IO at the same time adds to it too
+        public void record(long start, long[] startIo) {
+            record(start);
+            if (startIo != null) {
+                long[] io = readIo();
+                if (io != null) {
+                    bytesRead.addAndGet(io[0] - startIo[0]);
+                    bytesWritten.addAndGet(io[1] - startIo[1]);
+                }
+            }
+        }
+
+        private void reset() {
+            all.reset();
+            mainThread.reset();
+            bytesRead.set(0);
+            bytesWritten.set(0);
+        }
+    }
+
+    // counts of values in buckets that grow exponentially, 4 per power of two, so that recording a
+    // value is a few atomic operations and takes the same memory however many values there are
+    static final class Histogram {
+        // values up to 2^40 microseconds (about 12 days) get their own bucket
+        private static final int BUCKET_COUNT = 4 * 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        long sum() {
+            return sum.get();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // returns the largest value in the bucket holding the specified fraction of the values
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count.get());
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketMax(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        // values below 4 get a bucket each. above that, the bucket is given by the highest bit
+        // and the two bits after it
+        static int bucket(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int highestBit = 63 - Long.numberOfLeadingZeros(value);
+            int bucket = 4 * (highestBit - 1) + (int) ((value >> (highestBit - 2)) & 3);
+            return Math.min(bucket, BUCKET_COUNT - 1);
+        }
+
+        static long bucketMax(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int highestBit = bucket / 4 + 1;
+            long min = (long) (4 + bucket % 4) << (highestBit - 2);
+            return min + (1L << (highestBit - 2)) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.morchkovalski.notes;
+
+import java.util.List;
+
+// a single change to the stored Note list. NoteRepository applies mutations to its in-memory list
+// and hands them to the NoteStore, so that stores can persist the change instead of the whole list.
+// TRASH removes a note from the list but leaves it in the store as a tombstone, so that RESTORE can
+// put it back without writing it again. PURGE deletes all tombstones
+public class NoteMutation {
+
+    public static final int INSERT = 1;
+    public static final int REPLACE = 2;
+    public static final int DELETE = 3;
+    public static final int MOVE = 4;
+    public static final int TRASH = 5;
+    public static final int RESTORE = 6;
+    public static final int PURGE = 7;
+
+    public final int type;
+    // the affected position (the source position for MOVE), unused for PURGE
+    public final int position;
+    // the target position for MOVE, unused otherwise
+    public final int to;
+    // the inserted or replacing note for INSERT and REPLACE, the trashed or restored note for TRASH
+    // and RESTORE (which may be without its text), null otherwise
+    public final Note note;
+
+    private NoteMutation(int type, int position, int to, Note note) {
+        this.type = type;
+        this.position = position;
+        this.to = to;
+        this.note = note;
+    }
+
+    public static NoteMutation insert(int position, Note note) {
+        return new NoteMutation(INSERT, position, -1, note);
+    }
+
+    public static NoteMutation replace(int position, Note note) {
+        return new NoteMutation(REPLACE, position, -1, note);
+    }
+
+    public static NoteMutation delete(int position) {
+        return new NoteMutation(DELETE, position, -1, null);
+    }
+
+    public static NoteMutation move(int from, int to) {
+        return new NoteMutation(MOVE, from, to, null);
+    }
+
+    // note is the note at the position, it's filled in by NoteRepository if it's null
+    public static NoteMutation trash(int position, Note note) {
+        return new NoteMutation(TRASH, position, -1, note);
+    }
+
+    public static NoteMutation restore(int position, Note note) {
+        return new NoteMutation(RESTORE, position, -1, note);
+    }
+
+    public static NoteMutation purge() {
+        return new NoteMutation(PURGE, -1, -1, null);
+    }
+
+    // applies this mutation to the specified list
+    public void applyTo(List<Note> noteList) {
+        switch (type) {
+            case INSERT:
+                noteList.add(position, note);
+                break;
+            case REPLACE:
+                noteList.set(position, note);
+                break;
+            case DELETE:
+            case TRASH:
+                noteList.remove(position);
+                break;
+            case RESTORE:
+                noteList.add(position, note);
+                break;
+            case PURGE:
+                break;
+            case MOVE:
+                if (to < 0 || to >= noteList.size()) {
+                    // checked before removing the note, so that a failed move leaves the list unchanged
+                    throw new IndexOutOfBoundsException("can't move a note to position " + to);
+                }
+                noteList.add(to, noteList.remove(position));
+                break;
+            default:
+                throw new IllegalStateException("unknown mutation type " + type);
+        }
+    }
+
+}
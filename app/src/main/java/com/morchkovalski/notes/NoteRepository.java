@@ -0,0 +1,803 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// process-wide in-memory copy of the stored Note list. the list is loaded from the NoteStore once and
+// all reads are served from memory. mutations are applied to the cached list right away and written
+// to the store in batches on a background thread (see flush)
+public class NoteRepository {
+
+    private static final String TAG = "NoteRepository";
+
+    // name of the store that currently holds the notes (see NoteStore implementations)
+    public static final String PREF_NOTE_STORE = "note_store";
+    // the store notes are kept in, chosen at build time. notes found in any other store are moved
+    // to this one on load
+    public static final String DEFAULT_STORE = BuildConfig.NOTE_STORE;
+
+    // notified (on the thread that made the change) whenever the cached list changes
+    public interface OnChangeListener {
+        void onNoteListChanged();
+    }
+
+    private static NoteRepository instance = null;
+
+    public static synchronized NoteRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new NoteRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // creates the store with the specified name
+    static NoteStore createStore(Context context, String name) {
+        switch (name) {
+            case SqliteNoteStore.NAME:
+                return new SqliteNoteStore(context);
+            case JournalNoteStore.NAME:
+                return new JournalNoteStore(context.getFilesDir());
+            case MappedNoteStore.NAME:
+                return new MappedNoteStore(context.getFilesDir());
+            case ShardedNoteStore.NAME:
+                return new ShardedNoteStore(context.getFilesDir());
+            case PrefsNoteStore.NAME:
+                return new PrefsNoteStore(context);
+            default:
+                throw new IllegalArgumentException("unknown note store " + name);
+        }
+    }
+
+    // how long changes are collected before they are written together
+    private static final long WRITE_DELAY = 500;
+    // a failed write is tried again after WRITE_DELAY, and then after twice as long each time it
+    // fails again, up to this delay
+    private static final long MAX_RETRY_DELAY = 60000;
+    // how many texts are read at a time when notes missing from the search index are indexed, so
+    // that rebuilding the whole index doesn't keep all of them in memory
+    private static final int REINDEX_BATCH_SIZE = 100;
+    // lists longer than this are kept in paging mode: only the ids and dates of the notes are
+    // cached, and the rest is read for the notes being shown (see getContents)
+    private static final int PAGING_THRESHOLD = 1000;
+
+    private final Context context;
+    // name of the store the notes are kept in
+    private final String storeName;
+    private final NoteStore store;
+    // null until the list is loaded for the first time
+    private List<Note> noteList = null;
+    // true if the list is kept in paging mode, i.e. the store loaded it without the contents
+    private boolean paging = false;
+    private final SearchIndex searchIndex;
+    // the search index is loaded, rebuilt and updated on this thread, in the order the changes were
+    // made, so that reading and indexing texts happens outside of the lock. a search waits for the
+    // changes queued before it
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+    // the list in the other sort orders, kept up to date together with the list
+    private final SortIndex sortIndex;
+    // notes removed with NoteMutation.TRASH that weren't purged yet, by id. they stay in the store
+    // and in the search index until they are purged
+    private Map<Long, Note> trash = new HashMap<>();
+
+    // all writes to the store happen on this thread, in the order the changes were made
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    // changes that were applied to the cached list but not written yet
+    private List<NoteMutation> pendingMutations = new ArrayList<>();
+    // true if the whole list has to be written instead of pendingMutations
+    private boolean pendingReplaceAll = false;
+    private ScheduledFuture<?> scheduledWrite = null;
+    // the write scheduled last, which may be running or done already
+    private Future<?> lastWrite = null;
+    // the error of the last write, null if it succeeded
+    private IOException writeError = null;
+    // how long to wait before trying a failed write again
+    private long retryDelay = WRITE_DELAY;
+
+    // not guarded by the lock, so that adding a listener doesn't wait for the list to be read
+    private final List<OnChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private NoteRepository(Context context) {
+        this(context, DEFAULT_STORE, new MeasuredNoteStore(createStore(context, DEFAULT_STORE)));
+    }
+
+    // creates a repository keeping the notes in the specified store instead of the default one.
+    // the app only uses getInstance, this is for comparing the stores in the benchmarks
+    NoteRepository(Context context, String storeName, NoteStore store) {
+        this.context = context;
+        this.storeName = storeName;
+        this.store = store;
+        this.searchIndex = new SearchIndex(context.getFilesDir());
+        this.sortIndex = new SortIndex(context.getFilesDir());
+    }
+
+    // returns the cached Note list, loading it from the store if needed
+    private List<Note> getNoteList() throws IOException {
+        if (noteList == null) {
+            migrate();
+            noteList = store.loadWithoutContents();
+            if (noteList.size() <= PAGING_THRESHOLD) {
+                noteList = store.load(false);
+            }
+            paging = !noteList.isEmpty() && !noteList.get(0).hasContents();
+            final List<Note> loaded = new ArrayList<>(noteList);
+            indexExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadSearchIndex(loaded);
+                }
+            });
+            loadSortIndex(noteList);
+        }
+        return noteList;
+    }
+
+    // loads the saved search index and indexes the notes that changed since it was saved. runs on
+    // indexExecutor
+    private void loadSearchIndex(List<Note> noteList) {
+        try {
+            searchIndex.load();
+        } catch (IOException e) {
+            Log.w(TAG, "can't read the search index", e);
+        }
+        reindex(searchIndex.retain(noteList));
+    }
+
+    // indexes the notes a batch at a time, reading the texts that aren't loaded from the store. a
+    // batch that can't be read is left out, and indexed again on the next load since it's still
+    // missing from the index. runs on indexExecutor
+    private void reindex(List<Note> notes) {
+        for (int from = 0; from < notes.size(); from += REINDEX_BATCH_SIZE) {
+            List<Note> batch = notes.subList(from, Math.min(from + REINDEX_BATCH_SIZE, notes.size()));
+            try {
+                for (Note note : getFull(batch)) {
+                    searchIndex.add(note);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "can't index the notes", e);
+            }
+        }
+    }
+
+    // loads the saved sort keys and sorts the list with them
+    private void loadSortIndex(List<Note> noteList) throws IOException {
+        try {
+            sortIndex.load();
+        } catch (IOException e) {
+            Log.w(TAG, "can't read the sort index", e);
+        }
+        buildSortIndex(noteList);
+    }
+
+    // sorts the whole list again, reading the titles of the notes kept without contents whose
+    // keys weren't saved
+    private void buildSortIndex(List<Note> noteList) throws IOException {
+        List<Note> stale = sortIndex.retain(noteList);
+        List<Note> contents = Collections.emptyList();
+        if (!stale.isEmpty()) {
+            long[] ids = new long[stale.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = stale.get(i).getId();
+            }
+            contents = store.load(ids, false);
+        }
+        sortIndex.build(noteList, contents);
+    }
+
+    // moves the notes to the repository's store if they are currently kept in a different one
+    private void migrate() throws IOException {
+        SharedPreferences settings = context.getSharedPreferences(Note.PREFS_FILE, Context.MODE_PRIVATE);
+        // before there was a choice of stores, the notes were always in SharedPreferences
+        String current = settings.getString(PREF_NOTE_STORE, PrefsNoteStore.NAME);
+        if (current.equals(storeName)) {
+            return;
+        }
+        NoteStore oldStore = createStore(context, current);
+        if (oldStore.exists() || !store.exists()) {
+            store.replaceAll(oldStore.load(true));
+        }
+        settings.edit().putString(PREF_NOTE_STORE, storeName).commit();
+        try {
+            oldStore.clear();
+        } catch (IOException e) {
+            Log.w(TAG, "can't clear the old note store", e);
+        }
+    }
+
+    private void apply(NoteMutation mutation) throws IOException {
+        apply(Collections.singletonList(mutation));
+    }
+
+    // applies the mutations to the cached list in order and queues them to be written. if any of
+    // them can't be applied (because of an invalid position, or a restored note that isn't in the
+    // trash), the list is left unchanged
+    public synchronized void apply(List<NoteMutation> mutations) throws IOException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        // the final version of every note added or removed by the mutations (null if it was
+        // removed), applied to the search index once all mutations succeeded
+        Map<Long, Note> indexChanges = new LinkedHashMap<>();
+        // the same for the sort index, except that trashed notes are removed from it too, since the
+        // sorted lists are taken from it
+        Map<Long, Note> sortChanges = new LinkedHashMap<>();
+        List<Note> updated = mutations.size() == 1 ? getNoteList() : new ArrayList<>(getNoteList());
+        Map<Long, Note> updatedTrash = trash;
+        // the mutations with the trashed and restored notes filled in, which are written
+        List<NoteMutation> resolved = new ArrayList<>(mutations.size());
+        for (NoteMutation mutation : mutations) {
+            if (mutation.type == NoteMutation.REPLACE || mutation.type == NoteMutation.DELETE) {
+                if (mutation.position >= 0 && mutation.position < updated.size()) {
+                    indexChanges.put(updated.get(mutation.position).getId(), null);
+                    sortChanges.put(updated.get(mutation.position).getId(), null);
+                }
+            } else if (mutation.type == NoteMutation.TRASH || mutation.type == NoteMutation.RESTORE || mutation.type == NoteMutation.PURGE) {
+                if (updatedTrash == trash) {
+                    updatedTrash = new HashMap<>(trash);
+                }
+                mutation = resolveTrash(mutation, updated, updatedTrash, indexChanges);
+                if (mutation.type == NoteMutation.TRASH) {
+                    sortChanges.put(mutation.note.getId(), null);
+                } else if (mutation.type == NoteMutation.RESTORE) {
+                    sortChanges.put(mutation.note.getId(), mutation.note);
+                }
+            }
+            mutation.applyTo(updated);
+            resolved.add(mutation);
+            if (mutation.type == NoteMutation.INSERT || mutation.type == NoteMutation.REPLACE) {
+                indexChanges.put(mutation.note.getId(), mutation.note);
+                sortChanges.put(mutation.note.getId(), mutation.note);
+            }
+        }
+        noteList = updated;
+        trash = updatedTrash;
+        mutations = resolved;
+        updateSearchIndex(indexChanges);
+        for (Map.Entry<Long, Note> change : sortChanges.entrySet()) {
+            if (change.getValue() != null) {
+                sortIndex.add(change.getValue());
+            } else {
+                sortIndex.remove(change.getKey());
+            }
+        }
+        if (!pendingReplaceAll) {
+            pendingMutations.addAll(mutations);
+        }
+        scheduleWrite(WRITE_DELAY);
+        notifyListeners();
+    }
+
+    // queues the changes to be applied to the search index: the notes to index, or null for the
+    // ones to remove
+    private void updateSearchIndex(final Map<Long, Note> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<Long, Note> change : changes.entrySet()) {
+                    if (change.getValue() != null) {
+                        searchIndex.add(change.getValue());
+                    } else {
+                        searchIndex.remove(change.getKey());
+                    }
+                }
+            }
+        });
+    }
+
+    // updates the trash for a TRASH, RESTORE or PURGE mutation, before it's applied to the list, and
+    // returns the mutation with the affected note filled in. the trashed notes stay in the search
+    // index, since search results are taken from the list anyway, and are only removed from it when
+    // they are purged
+    private static NoteMutation resolveTrash(NoteMutation mutation, List<Note> noteList, Map<Long, Note> trash, Map<Long, Note> indexChanges) throws IOException {
+        switch (mutation.type) {
+            case NoteMutation.TRASH: {
+                Note note = noteList.get(mutation.position);
+                trash.put(note.getId(), note);
+                return NoteMutation.trash(mutation.position, note);
+            }
+            case NoteMutation.RESTORE: {
+                Note note = trash.remove(mutation.note.getId());
+                if (note == null) {
+                    throw new IOException("note " + mutation.note.getId() + " isn't in the trash");
+                }
+                if (mutation.position < 0 || mutation.position > noteList.size()) {
+                    throw new IndexOutOfBoundsException("can't restore a note at position " + mutation.position);
+                }
+                return NoteMutation.restore(mutation.position, note);
+            }
+            default:
+                for (Long id : trash.keySet()) {
+                    indexChanges.put(id, null);
+                }
+                trash.clear();
+                return mutation;
+        }
+    }
+
+    // replaces the whole stored Note list. the notes must have their text (see getFull)
+    public synchronized void setAll(List<Note> notes) throws IOException {
+        getNoteList();
+        noteList = new ArrayList<>(notes);
+        // the store drops its trashed notes when the whole list is written
+        trash = new HashMap<>();
+        // index the notes that were replaced, reading the texts that aren't loaded
+        final List<Note> replaced = new ArrayList<>(noteList);
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reindex(searchIndex.retain(replaced));
+            }
+        });
+        buildSortIndex(noteList);
+        // the whole list is written anyway, so the queued changes don't matter anymore
+        pendingMutations.clear();
+        pendingReplaceAll = true;
+        scheduleWrite(WRITE_DELAY);
+        notifyListeners();
+    }
+
+    public void addOnChangeListener(OnChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnChangeListener(OnChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners() {
+        for (OnChangeListener listener : listeners) {
+            listener.onNoteListChanged();
+        }
+    }
+
+    // reads the note list on the write thread, so that it's usually in memory by the time the UI
+    // needs it. anything that needs the list in the meantime waits for this read instead of
+    // starting another one
+    public void preload() {
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = NoteMetrics.start();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                    Trace.beginSection("NoteRepository.preload");
+                }
+                try {
+                    synchronized (NoteRepository.this) {
+                        getNoteList();
+                    }
+                } catch (IOException e) {
+                    // reading it is tried again when the list is needed
+                    Log.w(TAG, "can't preload the note list", e);
+                } finally {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                        Trace.endSection();
+                    }
+                    NoteMetrics.STARTUP_PRELOAD.record(start);
+                }
+            }
+        });
+    }
+
+    // writes all queued changes right away. if wait is true, returns once they are written. the
+    // search and sort indexes are saved too, on indexExecutor, so a write never waits behind them
+    // and they are never waited for
+    public void flush(boolean wait) {
+        Future<?> write = writeNow();
+        indexExecutor.execute(saveIndexTask);
+        if (wait) {
+            waitFor(write);
+        }
+    }
+
+    // starts writing the queued changes and returns the write. if nothing is queued, returns the
+    // write that is still running, or null
+    private Future<?> writeNow() {
+        synchronized (this) {
+            if (pendingMutations.isEmpty() && !pendingReplaceAll) {
+                return lastWrite != null && !lastWrite.isDone() ? lastWrite : null;
+            }
+            scheduleWrite(0);
+            return scheduledWrite;
+        }
+    }
+
+    private static void waitFor(Future<?> task) {
+        if (task != null) {
+            try {
+                task.get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                Log.w(TAG, "waiting for a background task failed", e);
+            }
+        }
+    }
+
+    // writes everything that is queued and stops the write and index threads once the indexes are
+    // saved. the app's repository lives as long as the process, this is for the repositories created
+    // by the benchmarks
+    void close() {
+        flush(true);
+        writeExecutor.shutdown();
+        indexExecutor.shutdown();
+        try {
+            indexExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "waiting for the indexes to be saved failed", e);
+        }
+    }
+
+    // schedules the queued changes to be written after the specified delay, unless they are already
+    // scheduled to be written sooner
+    private void scheduleWrite(long delay) {
+        if (scheduledWrite != null) {
+            if (scheduledWrite.getDelay(TimeUnit.MILLISECONDS) <= delay || !scheduledWrite.cancel(false)) {
+                return;
+            }
+        }
+        scheduledWrite = writeExecutor.schedule(writeTask, delay, TimeUnit.MILLISECONDS);
+        lastWrite = scheduledWrite;
+    }
+
+    // writes everything queued so far with a single call to the store. runs on writeExecutor
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            List<NoteMutation> mutations;
+            List<Note> snapshot;
+            boolean replaceAll;
+            synchronized (NoteRepository.this) {
+                scheduledWrite = null;
+                if (pendingMutations.isEmpty() && !pendingReplaceAll) {
+                    return;
+                }
+                mutations = pendingMutations;
+                replaceAll = pendingReplaceAll;
+                pendingMutations = new ArrayList<>();
+                pendingReplaceAll = false;
+                // the store gets its own copy of the list, since the cached one keeps changing on
+                // the main thread while the store is writing
+                snapshot = new ArrayList<>(noteList);
+            }
+            try {
+                if (replaceAll) {
+                    store.replaceAll(snapshot);
+                } else {
+                    store.apply(mutations, snapshot);
+                }
+                synchronized (NoteRepository.this) {
+                    writeError = null;
+                    retryDelay = WRITE_DELAY;
+                    if (paging) {
+                        dropWrittenContents(replaceAll ? snapshot : writtenNotes(mutations));
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "can't save the note list", e);
+                synchronized (NoteRepository.this) {
+                    writeError = e;
+                    // keep the changes, they are written again together with the ones made
+                    // until the retry
+                    if (replaceAll || pendingReplaceAll) {
+                        pendingReplaceAll = true;
+                        pendingMutations.clear();
+                    } else {
+                        pendingMutations.addAll(0, mutations);
+                    }
+                    scheduleWrite(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                }
+            }
+        }
+    };
+
+    // returns the notes inserted, replaced or restored by the mutations, the last version of each
+    private static List<Note> writtenNotes(List<NoteMutation> mutations) {
+        List<Note> written = new ArrayList<>();
+        for (NoteMutation mutation : mutations) {
+            if (mutation.type == NoteMutation.INSERT || mutation.type == NoteMutation.REPLACE || mutation.type == NoteMutation.RESTORE) {
+                written.add(mutation.note);
+            }
+        }
+        return written;
+    }
+
+    // replaces the written notes that are still in the cached list with their versions without
+    // contents, like the rest of the list in paging mode, so that the notes edited or imported
+    // since it was loaded don't keep their texts in memory. the notes of a pending replaceAll
+    // have to keep them (see setAll)
+    private void dropWrittenContents(List<Note> written) {
+        if (pendingReplaceAll || written.isEmpty()) {
+            return;
+        }
+        Map<Long, Note> notes = new HashMap<>(written.size() * 2);
+        for (Note note : written) {
+            notes.put(note.getId(), note);
+        }
+        for (int i = 0; i < noteList.size(); i++) {
+            Note note = noteList.get(i);
+            // a note changed again since the write keeps its contents until that is written too
+            if (note.hasContents() && notes.get(note.getId()) == note) {
+                note = Note.withoutContents(note.getId(), note.getDateCreated(), note.getDate());
+                noteList.set(i, note);
+                sortIndex.add(note);
+            }
+        }
+    }
+
+    // saves the search and sort indexes if they changed. the indexes are only saved when the app
+    // goes to the background, since they are usually much bigger than the changes written in
+    // between. changes that weren't saved are picked up again from the note dates on the next load.
+    // runs on indexExecutor
+    private final Runnable saveIndexTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                searchIndex.save();
+            } catch (IOException e) {
+                Log.w(TAG, "can't save the search index", e);
+            }
+            try {
+                sortIndex.save();
+            } catch (IOException e) {
+                Log.w(TAG, "can't save the sort index", e);
+            }
+        }
+    };
+
+    public synchronized void insert(int position, Note note) throws IOException {
+        apply(NoteMutation.insert(position, note));
+    }
+
+    public synchronized void delete(int position) throws IOException {
+        apply(NoteMutation.delete(position));
+    }
+
+    public synchronized void replace(int position, Note note) throws IOException {
+        apply(NoteMutation.replace(position, note));
+    }
+
+    public synchronized void move(int from, int to) throws IOException {
+        apply(NoteMutation.move(from, to));
+    }
+
+    // adds the notes to the end of the list and returns once they are written, or throws if they
+    // can't be. the written notes are then only kept in the cached list the way the store loads
+    // them, without their texts (and without their contents in paging mode), so that appending a
+    // long list a batch at a time doesn't keep all of the texts in memory
+    public void appendAll(List<Note> notes) throws IOException {
+        if (notes.isEmpty()) {
+            return;
+        }
+        int position;
+        synchronized (this) {
+            position = getNoteList().size();
+            List<NoteMutation> mutations = new ArrayList<>(notes.size());
+            for (int i = 0; i < notes.size(); i++) {
+                mutations.add(NoteMutation.insert(position + i, notes.get(i)));
+            }
+            apply(mutations);
+        }
+        waitFor(writeNow());
+        long[] ids = new long[notes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = notes.get(i).getId();
+        }
+        Map<Long, Note> stored = new HashMap<>();
+        synchronized (this) {
+            if (writeError != null) {
+                throw new IOException("can't save the notes", writeError);
+            }
+            if (!pendingMutations.isEmpty() || pendingReplaceAll) {
+                // notes changed in the meantime may need the texts to be written, keep them
+                return;
+            }
+        }
+        // read outside of the lock like in getFull, the store has the notes now
+        for (Note note : store.load(ids, false)) {
+            stored.put(note.getId(), note);
+        }
+        synchronized (this) {
+            // the notes are usually still at the end of the list
+            for (int i = noteList.size() - 1; i >= 0 && !stored.isEmpty(); i--) {
+                Note note = stored.remove(noteList.get(i).getId());
+                if (note != null) {
+                    note = paging ? Note.withoutContents(note.getId(), note.getDateCreated(), note.getDate()) : note;
+                    noteList.set(i, note);
+                    sortIndex.add(note);
+                }
+            }
+        }
+    }
+
+    // returns the notes with their texts, in the same order. the texts that aren't loaded are read
+    // from the store with a single call. notes that were deleted in the meantime are left out
+    public List<Note> getFull(List<Note> notes) throws IOException {
+        List<Long> missing = new ArrayList<>();
+        for (Note note : notes) {
+            if (!note.hasText()) {
+                missing.add(note.getId());
+            }
+        }
+        Map<Long, Note> loaded = new HashMap<>();
+        if (!missing.isEmpty()) {
+            long[] ids = new long[missing.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = missing.get(i);
+            }
+            for (Note note : store.load(ids, true)) {
+                loaded.put(note.getId(), note);
+            }
+        }
+        List<Note> full = new ArrayList<>(notes.size());
+        for (Note note : notes) {
+            if (note.hasText()) {
+                full.add(note);
+            } else if (loaded.containsKey(note.getId())) {
+                full.add(loaded.get(note.getId()));
+            }
+        }
+        return full;
+    }
+
+    // deletes the trashed notes for good, along with their drafts. the store drops them in the
+    // background, together with the next write
+    public synchronized void purgeTrash() throws IOException {
+        if (trash.isEmpty()) {
+            return;
+        }
+        List<Long> purged = new ArrayList<>(trash.keySet());
+        apply(NoteMutation.purge());
+        NoteDraft.delete(context, purged);
+    }
+
+    public synchronized Note get(int position) throws IOException {
+        return getNoteList().get(position);
+    }
+
+    // returns the note at the specified position with its text, which is read from the store if
+    // needed. the text isn't kept in the cached list, so it only takes memory while it's in use
+    public Note getFull(int position) throws IOException {
+        Note note;
+        synchronized (this) {
+            note = getNoteList().get(position);
+        }
+        // read outside of the lock, so that reading a long text doesn't block other calls
+        return loadFull(note);
+    }
+
+    // returns the note with its contents and text, reading whatever is missing from the store
+    private Note loadFull(Note note) throws IOException {
+        if (!note.hasContents()) {
+            List<Note> loaded = store.load(new long[] { note.getId() }, true);
+            if (loaded.isEmpty()) {
+                throw new IOException("no note with id " + note.getId());
+            }
+            return loaded.get(0);
+        }
+        if (!note.hasText()) {
+            return note.withText(store.loadText(note.getId()));
+        }
+        return note;
+    }
+
+    // returns the notes with the specified ids with their titles and previews, for showing notes
+    // kept without contents in paging mode. read directly from the store, without the lock
+    public List<Note> getContents(long[] ids) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return store.load(ids, false);
+        } finally {
+            NoteMetrics.REPOSITORY_GET_CONTENTS.record(start);
+        }
+    }
+
+    // returns a copy of the whole cached list
+    public synchronized List<Note> getAll() throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            return new ArrayList<>(getNoteList());
+        } finally {
+            NoteMetrics.REPOSITORY_GET_ALL.record(start);
+        }
+    }
+
+    // returns the notes that contain words starting with all words of the query, in the specified
+    // order (see SortIndex). if the query has no words, returns all notes. all notes in an order
+    // other than the list's are returned without copying them, as a list that doesn't change with
+    // the cached one. a query with words waits (outside of the lock) until the changes made so far
+    // are indexed
+    public List<Note> search(String query, int order) throws IOException {
+        long start = NoteMetrics.start();
+        try {
+            long[] ids = null;
+            if (!SearchIndex.tokenize(query).isEmpty()) {
+                Future<?> indexed;
+                synchronized (this) {
+                    getNoteList();
+                    indexed = indexExecutor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    });
+                }
+                waitFor(indexed);
+                ids = searchIndex.search(query);
+            }
+            return search(ids, order);
+        } finally {
+            NoteMetrics.REPOSITORY_SEARCH.record(start);
+        }
+    }
+
+    // returns the notes with the specified sorted ids in the order, or all notes if ids is null
+    private synchronized List<Note> search(long[] ids, int order) throws IOException {
+        List<Note> noteList = getNoteList();
+        if (order != SortIndex.ORDER_MANUAL) {
+            return ids == null ? sortIndex.get(order) : sortIndex.filter(order, ids);
+        }
+        if (ids == null) {
+            return new ArrayList<>(noteList);
+        }
+        List<Note> result = new ArrayList<>(ids.length);
+        for (Note note : noteList) {
+            if (Arrays.binarySearch(ids, note.getId()) >= 0) {
+                result.add(note);
+            }
+        }
+        return result;
+    }
+
+    // returns the position of the note with the specified id, or -1 if there is no such note
+    public synchronized int indexOf(long id) throws IOException {
+        List<Note> noteList = getNoteList();
+        for (int i = 0; i < noteList.size(); i++) {
+            if (noteList.get(i).getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // returns the positions of the notes with the specified ids, -1 for the ones that aren't in the
+    // list. if expected isn't null, it has the positions the notes are probably at (e.g. where they
+    // are shown), and only the notes that aren't there anymore are looked for in the whole list
+    public synchronized int[] positionsOf(long[] ids, int[] expected) throws IOException {
+        List<Note> noteList = getNoteList();
+        int[] positions = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            int position = expected != null ? expected[i] : -1;
+            if (position < 0 || position >= noteList.size() || noteList.get(position).getId() != ids[i]) {
+                position = indexOf(ids[i]);
+            }
+            positions[i] = position;
+        }
+        return positions;
+    }
+
+    public synchronized int count() throws IOException {
+        return getNoteList().size();
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+// the strings shown in a note's row in the list, computed once per version of the note. notes are
+// never modified, so a row stays valid for as long as the same Note object is shown
+public class NoteRow {
+
+    // the note in the shown list this row was created for
+    public final Note note;
+    // false if the row was created before the contents of the note were read (see
+    // Note.withoutContents), in which case the title and preview are empty
+    public final boolean hasContents;
+    public final String title;
+    public final String preview;
+    public final String date;
+
+    // creates the row for a note in the list. contents is the same note with its title and
+    // preview, or null if they aren't read yet
+    public NoteRow(Context context, Note note, Note contents) {
+        this.note = note;
+        this.hasContents = contents != null;
+        this.title = contents != null ? contents.getTitle().trim() : "";
+        this.preview = contents != null ? contents.getPreview() : "";
+        this.date = formatDate(context, note.getDateMillis());
+    }
+
+    // formats the date a note was edited, the same way everywhere in the app
+    public static String formatDate(Context context, long millis) {
+        return DateUtils.formatDateTime(context, millis, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_YEAR);
+    }
+
+}
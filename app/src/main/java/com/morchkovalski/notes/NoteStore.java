@@ -0,0 +1,40 @@
+package com.morchkovalski.notes;
+
+import java.io.IOException;
+import java.util.List;
+
+// persistence backend behind NoteRepository
+public interface NoteStore {
+
+    // returns true if the store holds a saved Note list (even an empty one)
+    boolean exists();
+
+    // reads the saved Note list. unless withText is true, the store may leave out the text of the
+    // notes (see Note.withoutText), which is then read with loadText when it's needed
+    List<Note> load(boolean withText) throws IOException;
+
+    // reads the saved Note list without the titles and texts (see Note.withoutContents), which are
+    // then read with load(long[], boolean) for the notes being shown. stores that have to read
+    // everything anyway may return the notes with their contents
+    List<Note> loadWithoutContents() throws IOException;
+
+    // reads the notes with the specified ids, in no particular order. ids that aren't in the store
+    // are skipped. unless withText is true, the text of the notes may be left out
+    List<Note> load(long[] ids, boolean withText) throws IOException;
+
+    // reads the text of the note with the specified id
+    String loadText(long id) throws IOException;
+
+    // persists the specified mutations. noteList is the whole list after the mutations were applied,
+    // and must not be modified by the store. inserted and replacing notes always have their text.
+    // trashed notes have to be kept until they are restored or purged, but only until the store is
+    // loaded again, since nothing can be restored after that
+    void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException;
+
+    // replaces everything in the store with the specified list, dropping the trashed notes
+    void replaceAll(List<Note> noteList) throws IOException;
+
+    // removes everything saved by this store
+    void clear() throws IOException;
+
+}
@@ -0,0 +1,15 @@
+package com.morchkovalski.notes;
+
+import android.app.Application;
+
+public class NotesApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.processStarted();
+        // start reading the notes right away, while the first activity is being created
+        NoteRepository.getInstance(this).preload();
+    }
+
+}
@@ -0,0 +1,238 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// the original storage format: the whole Note list as a single json string in SharedPreferences.
+// every change rewrites the whole list, so trashed notes are simply left out, and kept in memory
+// with their texts until they are restored or purged
+public class PrefsNoteStore implements NoteStore {
+
+    public static final String NAME = "prefs";
+
+    private final SharedPreferences settings;
+    // the trashed notes with their texts, by id
+    private Map<Long, Note> trash = new HashMap<>();
+
+    public PrefsNoteStore(Context context) {
+        settings = context.getSharedPreferences(Note.PREFS_FILE, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public boolean exists() {
+        return settings.contains(Note.PREF_NOTE_LIST);
+    }
+
+    // the json is read with a streaming parser, without building a DOM for the whole list. unless
+    // withText is true, only a preview of each text is kept (but notes saved without an id keep
+    // their text, since there is no way to find it again later)
+    @Override
+    public List<Note> load(boolean withText) throws IOException {
+        final List<Note> noteList = new ArrayList<>();
+        readNotes(withText, new NoteReader() {
+            @Override
+            public boolean onNote(Note note) {
+                noteList.add(note);
+                return true;
+            }
+        });
+        return noteList;
+    }
+
+    // the whole blob is parsed anyway, so the notes are returned with their previews
+    @Override
+    public List<Note> loadWithoutContents() throws IOException {
+        return load(false);
+    }
+
+    @Override
+    public List<Note> load(long[] ids, boolean withText) throws IOException {
+        final Set<Long> wanted = new HashSet<>();
+        for (long id : ids) {
+            wanted.add(id);
+        }
+        final List<Note> noteList = new ArrayList<>();
+        readNotes(withText, new NoteReader() {
+            @Override
+            public boolean onNote(Note note) {
+                if (wanted.remove(note.getId())) {
+                    noteList.add(note);
+                }
+                return !wanted.isEmpty();
+            }
+        });
+        return noteList;
+    }
+
+    @Override
+    public String loadText(final long id) throws IOException {
+        final String[] text = { null };
+        readNotes(true, new NoteReader() {
+            @Override
+            public boolean onNote(Note note) {
+                if (note.getId() == id) {
+                    text[0] = note.getText();
+                    return false;
+                }
+                return true;
+            }
+        });
+        if (text[0] == null) {
+            throw new IOException("no note with id " + id);
+        }
+        return text[0];
+    }
+
+    private interface NoteReader {
+        // called for every note in the list, returns false to stop reading
+        boolean onNote(Note note);
+    }
+
+    private void readNotes(boolean withText, NoteReader noteReader) throws IOException {
+        if (!settings.contains(Note.PREF_NOTE_LIST)) {
+            return;
+        }
+        JsonReader reader = new JsonReader(new StringReader(settings.getString(Note.PREF_NOTE_LIST, "")));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(Note.JSON_NOTES)) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (!noteReader.onNote(Note.readJSON(reader, withText))) {
+                        return;
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("can't parse the note list", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public synchronized void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        Map<Long, Note> newTrash = new HashMap<>(trash);
+        // the restored notes with their texts, which aren't in the saved list anymore
+        Map<Long, Note> restored = new HashMap<>();
+        Map<Long, String> texts = null;
+        for (NoteMutation mutation : mutations) {
+            switch (mutation.type) {
+                case NoteMutation.TRASH: {
+                    Note note = mutation.note;
+                    if (!note.hasText()) {
+                        if (texts == null) {
+                            texts = loadTexts();
+                        }
+                        if (!texts.containsKey(note.getId())) {
+                            throw new IOException("the text of note " + note.getId() + " is missing");
+                        }
+                        note = note.withText(texts.get(note.getId()));
+                    }
+                    newTrash.put(note.getId(), note);
+                    break;
+                }
+                case NoteMutation.RESTORE: {
+                    Note note = newTrash.remove(mutation.note.getId());
+                    if (note != null) {
+                        restored.put(note.getId(), note);
+                    }
+                    break;
+                }
+                case NoteMutation.PURGE:
+                    newTrash.clear();
+                    break;
+            }
+        }
+        if (!restored.isEmpty()) {
+            noteList = new ArrayList<>(noteList);
+            for (int i = 0; i < noteList.size(); i++) {
+                Note note = restored.get(noteList.get(i).getId());
+                if (note != null && !noteList.get(i).hasText()) {
+                    noteList.set(i, note);
+                }
+            }
+        }
+        write(noteList);
+        trash = newTrash;
+    }
+
+    @Override
+    public synchronized void replaceAll(List<Note> noteList) throws IOException {
+        write(noteList);
+        trash = new HashMap<>();
+    }
+
+    private void write(List<Note> noteList) throws IOException {
+        // the whole list is written again, including the texts that were never loaded
+        Map<Long, String> missingTexts = null;
+        for (Note note : noteList) {
+            if (!note.hasText()) {
+                missingTexts = loadTexts();
+                break;
+            }
+        }
+        long start = NoteMetrics.start();
+        String json;
+        try {
+            JSONArray jsonNotesArray = new JSONArray();
+            for (Note note : noteList) {
+                if (!note.hasText()) {
+                    note = note.withText(missingTexts.get(note.getId()));
+                }
+                jsonNotesArray.put(note.toJSON());
+            }
+
+            JSONObject jsonNotes = new JSONObject();
+            jsonNotes.put(Note.JSON_NOTES, jsonNotesArray);
+            json = jsonNotes.toString();
+        } catch (JSONException | IllegalStateException e) {
+            throw new IOException("can't serialize the note list", e);
+        }
+        NoteMetrics.SERIALIZE_PREFS.record(start);
+
+        // stores are only written on NoteRepository's write thread, so there is no need for apply()
+        if (!settings.edit().putString(Note.PREF_NOTE_LIST, json).commit()) {
+            throw new IOException("can't write the note list");
+        }
+    }
+
+    // returns the texts of all saved notes by id
+    private Map<Long, String> loadTexts() throws IOException {
+        final Map<Long, String> texts = new HashMap<>();
+        readNotes(true, new NoteReader() {
+            @Override
+            public boolean onNote(Note note) {
+                texts.put(note.getId(), note.getText());
+                return true;
+            }
+        });
+        return texts;
+    }
+
+    @Override
+    public void clear() {
+        settings.edit().remove(Note.PREF_NOTE_LIST).apply();
+    }
+
+}
@@ -0,0 +1,302 @@
+package com.morchkovalski.notes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// inverted index of the words in note titles and texts, used to search notes without reading their
+// texts. words are kept sorted, so all words starting with a prefix are found with a single range
+// lookup. the index is updated after the cached Note list, on the repository's index thread, and
+// saved to a file, so it only has to be built once
+public class SearchIndex {
+
+    public static final String INDEX_FILE = "search.index";
+
+    private static final int FORMAT_VERSION = 1;
+    // longer words are cut to this length, both when indexed and when searched for
+    private static final int MAX_TOKEN_LENGTH = 32;
+
+    // the words of a single note, and the date of the note version they were taken from
+    private static class Entry {
+        final long date;
+        final String[] tokens;
+        // small number identifying the note within the index, see ordinalIds
+        int ordinal;
+
+        Entry(long date, String[] tokens) {
+            this.date = date;
+            this.tokens = tokens;
+        }
+    }
+
+    // ordinals of the notes containing a word, sorted, so that a note is found with a binary
+    // search when it's removed instead of going through all notes with a common word
+    private static class Postings {
+        int[] ordinals = new int[4];
+        int size = 0;
+
+        void add(int ordinal) {
+            int i = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            System.arraycopy(ordinals, i, ordinals, i + 1, size - i);
+            ordinals[i] = ordinal;
+            size++;
+        }
+
+        void remove(int ordinal) {
+            int i = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (i >= 0) {
+                System.arraycopy(ordinals, i + 1, ordinals, i, size - i - 1);
+                size--;
+            }
+        }
+    }
+
+    private final File file;
+    private final TreeMap<String, Postings> postings = new TreeMap<>();
+    private final Map<Long, Entry> entries = new HashMap<>();
+    // notes are referred to by dense ordinals instead of ids in the postings, so that the matches
+    // of a query can be collected in a BitSet. ordinals of removed notes are reused
+    private long[] ordinalIds = new long[16];
+    private int ordinalCount = 0;
+    private int[] freeOrdinals = new int[16];
+    private int freeCount = 0;
+    // true if the index changed since it was last loaded or saved
+    private boolean dirty = false;
+
+    public SearchIndex(File dir) {
+        file = new File(dir, INDEX_FILE);
+    }
+
+    // splits text into lowercase words without diacritics. ł has no decomposition, so it's
+    // replaced separately, the way it's usually typed without Polish characters
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < normalized.length(); ) {
+            int c = normalized.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    c = Character.toLowerCase(c);
+                    token.appendCodePoint(c == 'ł' ? 'l' : c);
+                }
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    // adds a note to the index, replacing the version of it indexed before. the note needs its text.
+    // the text is split into words before taking the lock, so searches don't wait for it
+    public void add(Note note) {
+        Set<String> tokens = new LinkedHashSet<>(tokenize(note.getTitle()));
+        tokens.addAll(tokenize(note.getText()));
+        Entry entry = new Entry(note.getDateMillis(), tokens.toArray(new String[tokens.size()]));
+        synchronized (this) {
+            add(note.getId(), entry);
+        }
+    }
+
+    private void add(long id, Entry entry) {
+        remove(id);
+        if (freeCount > 0) {
+            entry.ordinal = freeOrdinals[--freeCount];
+        } else {
+            if (ordinalCount == ordinalIds.length) {
+                ordinalIds = Arrays.copyOf(ordinalIds, ordinalCount * 2);
+            }
+            entry.ordinal = ordinalCount++;
+        }
+        ordinalIds[entry.ordinal] = id;
+        entries.put(id, entry);
+        for (String token : entry.tokens) {
+            Postings matches = postings.get(token);
+            if (matches == null) {
+                matches = new Postings();
+                postings.put(token, matches);
+            }
+            matches.add(entry.ordinal);
+        }
+        dirty = true;
+    }
+
+    public synchronized void remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        for (String token : entry.tokens) {
+            Postings matches = postings.get(token);
+            matches.remove(entry.ordinal);
+            if (matches.size == 0) {
+                postings.remove(token);
+            }
+        }
+        if (freeCount == freeOrdinals.length) {
+            freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+        }
+        freeOrdinals[freeCount++] = entry.ordinal;
+        dirty = true;
+    }
+
+    // drops the notes that aren't in the list anymore and returns the notes from the list that are
+    // missing from the index or were indexed in a different version
+    public synchronized List<Note> retain(List<Note> noteList) {
+        List<Note> stale = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        for (Note note : noteList) {
+            ids.add(note.getId());
+            Entry entry = entries.get(note.getId());
+            if (entry == null || entry.date != note.getDateMillis()) {
+                stale.add(note);
+            }
+        }
+        for (Long id : new ArrayList<>(entries.keySet())) {
+            if (!ids.contains(id)) {
+                remove(id);
+            }
+        }
+        return stale;
+    }
+
+    // returns the sorted ids of the notes that contain a word starting with every word of the
+    // query, or null if the query has no words
+    public synchronized long[] search(String query) {
+        BitSet result = null;
+        for (String token : new LinkedHashSet<>(tokenize(query))) {
+            BitSet matches = new BitSet(ordinalCount);
+            // all words with this prefix
+            for (Postings postings : this.postings.subMap(token, token + Character.MAX_VALUE).values()) {
+                for (int i = 0; i < postings.size; i++) {
+                    matches.set(postings.ordinals[i]);
+                }
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.and(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        if (result == null) {
+            return null;
+        }
+        long[] ids = new long[result.cardinality()];
+        int count = 0;
+        for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+            ids[count++] = ordinalIds[i];
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // reads the index saved by save. a missing or unreadable file leaves the index empty
+    public synchronized void load() throws IOException {
+        postings.clear();
+        entries.clear();
+        ordinalCount = 0;
+        freeCount = 0;
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long date = in.readLong();
+                String[] tokens = new String[in.readInt()];
+                for (int j = 0; j < tokens.length; j++) {
+                    tokens[j] = in.readUTF();
+                }
+                add(id, new Entry(date, tokens));
+            }
+        } catch (EOFException | NegativeArraySizeException e) {
+            // the file was cut short (or is garbage), the missing notes are indexed again
+        } finally {
+            in.close();
+            dirty = false;
+        }
+    }
+
+    // writes the index to its file if it changed. the entries are copied under the lock and written
+    // outside of it, so the index can be used while it's being saved
+    public void save() throws IOException {
+        Map<Long, Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = new HashMap<>(entries);
+            dirty = false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<Long, Entry> entry : snapshot.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue().date);
+                    out.writeInt(entry.getValue().tokens.length);
+                    for (String token : entry.getValue().tokens) {
+                        out.writeUTF(token);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            tmp.delete();
+            throw e;
+        }
+    }
+
+}
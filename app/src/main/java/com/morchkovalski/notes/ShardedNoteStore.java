@@ -0,0 +1,342 @@
+package com.morchkovalski.notes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// stores the text of every note in its own file named by the note's id, and the list order with
+// the titles, previews and dates in a small manifest. editing a note rewrites its text file and the
+// manifest, moving a note only rewrites the manifest, and the list is loaded from the manifest alone.
+// trashing or restoring a note only rewrites the manifest too, the text file is kept until the
+// trash is purged. a text file holds the UTF-8 text, or, for long texts, a TEXT_DEFLATED byte
+// followed by the text compressed (see TextCompression)
+public class ShardedNoteStore implements NoteStore {
+
+    public static final String NAME = "sharded";
+    public static final String NOTES_DIR = "notes";
+    public static final String MANIFEST_FILE = "manifest";
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String TEXT_SUFFIX = ".txt";
+    // first byte of a compressed text file. it never occurs in UTF-8
+    private static final int TEXT_DEFLATED = 0xff;
+
+    private final File dir;
+    private final File manifest;
+    // ids of the notes in the manifest, null until it's read
+    private Set<Long> storedIds = null;
+    // ids of the trashed notes, whose text files are kept
+    private Set<Long> trashedIds = new HashSet<>();
+    // false until the text files left behind by the previous run are deleted
+    private boolean swept = false;
+
+    public ShardedNoteStore(File parent) {
+        dir = new File(parent, NOTES_DIR);
+        manifest = new File(dir, MANIFEST_FILE);
+    }
+
+    @Override
+    public boolean exists() {
+        return manifest.exists();
+    }
+
+    // the manifest has the previews, so the text files are only read if withText is true
+    @Override
+    public synchronized List<Note> load(boolean withText) throws IOException {
+        List<Note> noteList = readManifest();
+        if (withText) {
+            for (int i = 0; i < noteList.size(); i++) {
+                noteList.set(i, noteList.get(i).withText(loadText(noteList.get(i).getId())));
+            }
+        }
+        return noteList;
+    }
+
+    // the manifest is small, so the notes are returned with their titles and previews
+    @Override
+    public List<Note> loadWithoutContents() throws IOException {
+        return load(false);
+    }
+
+    @Override
+    public synchronized List<Note> load(long[] ids, boolean withText) throws IOException {
+        Map<Long, Note> notes = new HashMap<>();
+        for (Note note : readManifest()) {
+            notes.put(note.getId(), note);
+        }
+        List<Note> noteList = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Note note = notes.get(id);
+            if (note != null) {
+                noteList.add(withText ? note.withText(loadText(id)) : note);
+            }
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized String loadText(long id) throws IOException {
+        File textFile = textFile(id);
+        if (!textFile.exists()) {
+            throw new IOException("no note with id " + id);
+        }
+        InputStream in = new FileInputStream(textFile);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) textFile.length());
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+            byte[] data = bytes.toByteArray();
+            if (data.length > 0 && (data[0] & 0xff) == TEXT_DEFLATED) {
+                return TextCompression.decompress(data, 1, data.length - 1, Integer.MAX_VALUE);
+            }
+            return new String(data, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    // the text files are written before the manifest, so if the app is killed in between, the
+    // list can at worst show the previous title of a note whose text was already saved
+    @Override
+    public synchronized void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        if (storedIds == null) {
+            readManifest();
+        }
+        Map<Long, Note> changed = new HashMap<>();
+        Set<Long> newTrashedIds = new HashSet<>(trashedIds);
+        // the trashed notes to delete
+        Set<Long> purged = new HashSet<>();
+        for (NoteMutation mutation : mutations) {
+            switch (mutation.type) {
+                case NoteMutation.INSERT:
+                case NoteMutation.REPLACE:
+                    changed.put(mutation.note.getId(), mutation.note);
+                    break;
+                case NoteMutation.TRASH:
+                    newTrashedIds.add(mutation.note.getId());
+                    break;
+                case NoteMutation.RESTORE:
+                    // the file of a note trashed before a replaceAll was deleted by it. the notes
+                    // of a pending replaceAll all have their text (see NoteRepository.setAll)
+                    if (!newTrashedIds.remove(mutation.note.getId()) && !textFile(mutation.note.getId()).exists()) {
+                        if (!mutation.note.hasText()) {
+                            throw new IOException("the text of note " + mutation.note.getId() + " is missing");
+                        }
+                        changed.put(mutation.note.getId(), mutation.note);
+                    }
+                    break;
+                case NoteMutation.PURGE:
+                    purged.addAll(newTrashedIds);
+                    newTrashedIds.clear();
+                    break;
+            }
+        }
+        Set<Long> ids = new HashSet<>();
+        for (Note note : noteList) {
+            ids.add(note.getId());
+        }
+        for (Note note : changed.values()) {
+            // a note inserted and deleted again in the same batch doesn't need a file
+            if (ids.contains(note.getId()) || newTrashedIds.contains(note.getId())) {
+                writeText(note);
+            }
+        }
+        writeManifest(noteList);
+        for (Long id : storedIds) {
+            if (!ids.contains(id) && !newTrashedIds.contains(id)) {
+                textFile(id).delete();
+            }
+        }
+        for (Long id : purged) {
+            if (!ids.contains(id)) {
+                textFile(id).delete();
+            }
+        }
+        storedIds = ids;
+        trashedIds = newTrashedIds;
+        if (!swept) {
+            // the files of notes trashed by the previous run aren't in the manifest anymore
+            Set<Long> keep = new HashSet<>(ids);
+            keep.addAll(trashedIds);
+            deleteTextFilesExcept(keep);
+            swept = true;
+        }
+    }
+
+    @Override
+    public synchronized void replaceAll(List<Note> noteList) throws IOException {
+        Set<Long> ids = new HashSet<>();
+        for (Note note : noteList) {
+            ids.add(note.getId());
+            // notes without text keep the file they already have
+            if (note.hasText()) {
+                writeText(note);
+            } else if (!textFile(note.getId()).exists()) {
+                throw new IOException("the text of note " + note.getId() + " is missing");
+            }
+        }
+        writeManifest(noteList);
+        storedIds = ids;
+        trashedIds = new HashSet<>();
+        deleteTextFilesExcept(ids);
+        swept = true;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        deleteTextFilesExcept(new HashSet<Long>());
+        if (manifest.exists() && !manifest.delete()) {
+            throw new IOException("can't delete " + manifest);
+        }
+        dir.delete();
+        storedIds = null;
+        trashedIds = new HashSet<>();
+    }
+
+    private File textFile(long id) {
+        return new File(dir, id + TEXT_SUFFIX);
+    }
+
+    // deletes the text files of all notes with ids not in the set, including ones left behind if
+    // the app was killed while notes were being deleted
+    private void deleteTextFilesExcept(Set<Long> ids) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(TEXT_SUFFIX) && !name.endsWith(TEXT_SUFFIX + ".tmp")) {
+                continue;
+            }
+            try {
+                long id = Long.parseLong(name.substring(0, name.indexOf('.')));
+                if (!ids.contains(id) || name.endsWith(".tmp")) {
+                    file.delete();
+                }
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    private void writeText(Note note) throws IOException {
+        File textFile = textFile(note.getId());
+        File tmp = new File(textFile.getPath() + ".tmp");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        byte[] deflated = TextCompression.compress(note.getText());
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            if (deflated != null) {
+                out.write(TEXT_DEFLATED);
+                out.write(deflated);
+            } else {
+                out.write(note.getText().getBytes("UTF-8"));
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(textFile)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp + " to " + textFile);
+        }
+    }
+
+    // manifest layout: version (4 bytes), note count (4 bytes), then for every note in list order
+    // its id (8 bytes), date (8 bytes), creation date (8 bytes), title and preview. strings are
+    // stored as their UTF-8 length (4 bytes) followed by the UTF-8 bytes. version 1 manifests have
+    // no creation dates, their notes are created when they were last saved until the manifest is
+    // written again
+    private List<Note> readManifest() throws IOException {
+        List<Note> noteList = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        if (!manifest.exists()) {
+            storedIds = ids;
+            return noteList;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+        try {
+            int version = in.readInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("unknown manifest version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                Date date = new Date(in.readLong());
+                Date dateCreated = version > 1 ? new Date(in.readLong()) : date;
+                String title = readString(in);
+                String preview = readString(in);
+                noteList.add(Note.withoutText(id, title, preview, dateCreated, date));
+                ids.add(id);
+            }
+        } catch (EOFException e) {
+            throw new IOException("the manifest is incomplete", e);
+        } finally {
+            in.close();
+        }
+        storedIds = ids;
+        return noteList;
+    }
+
+    private void writeManifest(List<Note> noteList) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        File tmp = new File(manifest.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(noteList.size());
+            for (Note note : noteList) {
+                out.writeLong(note.getId());
+                out.writeLong(note.getDateMillis());
+                out.writeLong(note.getDateCreatedMillis());
+                writeString(note.getTitle(), out);
+                writeString(note.getPreview(), out);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp + " to " + manifest);
+        }
+    }
+
+    private static void writeString(String s, DataOutputStream data) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            throw new IOException("negative string length in the manifest");
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+}
@@ -0,0 +1,489 @@
+package com.morchkovalski.notes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// the notes of the cached list in the sort orders other than the list's own. every order is a
+// balanced search tree that is updated a note at a time together with the list, so that a changed
+// note costs O(log n) instead of sorting all notes again. the trees are never modified, an update
+// copies the nodes on its path instead, so the notes of an order (see get) are a view of a tree
+// that is returned without copying anything and stays the same while the index changes. the
+// titles are saved to a file like the search index, so that paging mode doesn't read every title
+public class SortIndex {
+
+    public static final String INDEX_FILE = "sort.index";
+
+    // the list's own order, in which the notes are moved by dragging them
+    public static final int ORDER_MANUAL = 0;
+    // the most recently edited notes first
+    public static final int ORDER_EDITED = 1;
+    // alphabetically by title, the notes without a title last
+    public static final int ORDER_TITLE = 2;
+    // the most recently created notes first
+    public static final int ORDER_CREATED = 3;
+
+    private static final int FORMAT_VERSION = 2;
+    // titles are compared by this many chars at most
+    private static final int MAX_TITLE_LENGTH = 100;
+    // the trees are weight-balanced: neither subtree of a node has more than DELTA times as many
+    // nodes as the other. a subtree that got too big is rotated once, or twice if its inner half
+    // has at least RATIO times as many nodes as its outer half
+    private static final int DELTA = 3;
+    private static final int RATIO = 2;
+
+    // the sort keys of a note. note is null while the note isn't in the list (it was trashed, or the
+    // keys were just loaded), the title is kept in case it comes back without its contents
+    private static class Entry {
+        final Note note;
+        final long id;
+        final long edited;
+        final long created;
+        final String title;
+        final CollationKey titleKey;
+
+        Entry(Note note, long id, long edited, long created, String title, CollationKey titleKey) {
+            this.note = note;
+            this.id = id;
+            this.edited = edited;
+            this.created = created;
+            this.title = title;
+            this.titleKey = titleKey;
+        }
+
+        // the keys of the same version of the note, which the dates are taken from
+        Entry withNote(Note note) {
+            return new Entry(note, id, edited, note != null ? note.getDateCreatedMillis() : created, title, titleKey);
+        }
+    }
+
+    // a tree node, with the number of nodes in its subtree for finding the note at a position
+    private static class Node {
+        final Node left;
+        final Entry entry;
+        final Node right;
+        final int size;
+
+        Node(Node left, Entry entry, Node right) {
+            this.left = left;
+            this.entry = entry;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    // the notes of a tree, in order
+    private static class OrderList extends AbstractList<Note> {
+        private final Node root;
+
+        OrderList(Node root) {
+            this.root = root;
+        }
+
+        @Override
+        public Note get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("no note at position " + index);
+            }
+            Node node = root;
+            while (true) {
+                int leftSize = SortIndex.size(node.left);
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index > leftSize) {
+                    index -= leftSize + 1;
+                    node = node.right;
+                } else {
+                    return node.entry.note;
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return SortIndex.size(root);
+        }
+    }
+
+    private final File file;
+    // not thread-safe, only used under the lock
+    private final Collator collator = Collator.getInstance();
+    private final Map<Long, Entry> entries = new HashMap<>();
+    // the root of the tree of every order, by order. ORDER_MANUAL is the list itself
+    private final Node[] roots = new Node[4];
+    // true if the keys changed since they were last loaded or saved
+    private boolean dirty = false;
+
+    public SortIndex(File dir) {
+        file = new File(dir, INDEX_FILE);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    // compares two notes in the specified order. notes that are equal in it are ordered by id, so
+    // every note has a single place in the tree
+    private static int compare(int order, Entry a, Entry b) {
+        int result;
+        switch (order) {
+            case ORDER_EDITED:
+                result = compare(b.edited, a.edited);
+                break;
+            case ORDER_CREATED:
+                result = compare(b.created, a.created);
+                break;
+            default:
+                if (a.title.isEmpty() != b.title.isEmpty()) {
+                    result = a.title.isEmpty() ? 1 : -1;
+                } else {
+                    result = a.titleKey.compareTo(b.titleKey);
+                }
+        }
+        return result != 0 ? result : compare(a.id, b.id);
+    }
+
+    private Entry createEntry(Note note, String title) {
+        if (title.length() > MAX_TITLE_LENGTH) {
+            // cut between code points, so that a character outside of the BMP isn't split in half
+            title = title.substring(0, title.offsetByCodePoints(0, title.codePointCount(0, MAX_TITLE_LENGTH)));
+        }
+        return new Entry(note, note.getId(), note.getDateMillis(), note.getDateCreatedMillis(), title, collator.getCollationKey(title));
+    }
+
+    // adds a note to the orders, replacing the version of it added before. a note without its
+    // contents keeps the title of the version before
+    public synchronized void add(Note note) {
+        Entry old = entries.get(note.getId());
+        if (old != null && old.note != null) {
+            removeFromOrders(old);
+        }
+        String title = note.hasContents() ? note.getTitle() : (old != null ? old.title : "");
+        Entry entry = createEntry(note, title);
+        entries.put(entry.id, entry);
+        for (int order = ORDER_EDITED; order < roots.length; order++) {
+            roots[order] = insert(order, roots[order], entry);
+        }
+        dirty = true;
+    }
+
+    // removes a note from the orders. its keys are kept until the next retain, so a note restored
+    // without its contents keeps its title
+    public synchronized void remove(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null || entry.note == null) {
+            return;
+        }
+        removeFromOrders(entry);
+        entries.put(id, entry.withNote(null));
+        dirty = true;
+    }
+
+    private void removeFromOrders(Entry entry) {
+        for (int order = ORDER_EDITED; order < roots.length; order++) {
+            roots[order] = delete(order, roots[order], entry);
+        }
+    }
+
+    // drops the keys of the notes that aren't in the list anymore and returns the notes from the
+    // list without contents whose keys are missing or were taken from a different version. their
+    // titles have to be read to build the orders (see build)
+    public synchronized List<Note> retain(List<Note> noteList) {
+        List<Note> stale = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        for (Note note : noteList) {
+            ids.add(note.getId());
+            Entry entry = entries.get(note.getId());
+            if (!note.hasContents() && (entry == null || entry.edited != note.getDateMillis())) {
+                stale.add(note);
+            }
+        }
+        if (entries.keySet().retainAll(ids)) {
+            dirty = true;
+        }
+        return stale;
+    }
+
+    // sorts all notes of the list again. the keys are taken from the notes, from contents (the
+    // notes returned by retain, read with their titles) or from the saved keys, in that order
+    public synchronized void build(List<Note> noteList, List<Note> contents) {
+        Map<Long, Note> titled = new HashMap<>();
+        for (Note note : contents) {
+            titled.put(note.getId(), note);
+        }
+        Entry[] sorted = new Entry[noteList.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            Note note = noteList.get(i);
+            Entry old = entries.get(note.getId());
+            Entry entry;
+            if (note.hasContents()) {
+                entry = createEntry(note, note.getTitle());
+            } else if (titled.containsKey(note.getId())) {
+                entry = createEntry(note, titled.get(note.getId()).getTitle());
+            } else if (old != null && old.edited == note.getDateMillis()) {
+                entry = old.withNote(note);
+            } else if (old != null) {
+                entry = createEntry(note, old.title);
+            } else {
+                entry = createEntry(note, "");
+            }
+            if (old == null || entry.edited != old.edited || !entry.title.equals(old.title)) {
+                dirty = true;
+            }
+            entries.put(entry.id, entry);
+            sorted[i] = entry;
+        }
+        // a balanced tree is built from the sorted notes directly, without rebalancing
+        for (int order = ORDER_EDITED; order < roots.length; order++) {
+            final int treeOrder = order;
+            Arrays.sort(sorted, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return SortIndex.compare(treeOrder, a, b);
+                }
+            });
+            roots[order] = build(sorted, 0, sorted.length);
+        }
+    }
+
+    private static Node build(Entry[] sorted, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        return new Node(build(sorted, from, middle), sorted[middle], build(sorted, middle + 1, to));
+    }
+
+    // returns the notes in the specified order. the list doesn't change when the index does, and
+    // finding the note at a position in it is O(log n)
+    public synchronized List<Note> get(int order) {
+        return new OrderList(roots[order]);
+    }
+
+    // returns the notes with the specified ids (sorted, like the results of SearchIndex.search) in
+    // the specified order
+    public synchronized List<Note> filter(int order, long[] ids) {
+        List<Note> result = new ArrayList<>(ids.length);
+        collect(roots[order], ids, result);
+        return result;
+    }
+
+    private static void collect(Node node, long[] ids, List<Note> result) {
+        if (node == null) {
+            return;
+        }
+        collect(node.left, ids, result);
+        if (Arrays.binarySearch(ids, node.entry.id) >= 0) {
+            result.add(node.entry.note);
+        }
+        collect(node.right, ids, result);
+    }
+
+    // returns true if every tree is in order and balanced, and the sizes of its nodes are right.
+    // used by the tests
+    synchronized boolean isValid() {
+        for (int order = ORDER_EDITED; order < roots.length; order++) {
+            if (!isValid(order, roots[order], null, null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValid(int order, Node node, Entry min, Entry max) {
+        if (node == null) {
+            return true;
+        }
+        int leftSize = size(node.left);
+        int rightSize = size(node.right);
+        if (node.size != leftSize + rightSize + 1) {
+            return false;
+        }
+        if (leftSize + rightSize > 1 && (leftSize > DELTA * rightSize || rightSize > DELTA * leftSize)) {
+            return false;
+        }
+        if (min != null && compare(order, node.entry, min) <= 0 || max != null && compare(order, node.entry, max) >= 0) {
+            return false;
+        }
+        return isValid(order, node.left, min, node.entry) && isValid(order, node.right, node.entry, max);
+    }
+
+    private static Node insert(int order, Node node, Entry entry) {
+        if (node == null) {
+            return new Node(null, entry, null);
+        }
+        if (compare(order, entry, node.entry) < 0) {
+            return balance(insert(order, node.left, entry), node.entry, node.right);
+        }
+        return balance(node.left, node.entry, insert(order, node.right, entry));
+    }
+
+    private static Node delete(int order, Node node, Entry entry) {
+        if (node == null) {
+            return null;
+        }
+        int result = compare(order, entry, node.entry);
+        if (result < 0) {
+            return balance(delete(order, node.left, entry), node.entry, node.right);
+        } else if (result > 0) {
+            return balance(node.left, node.entry, delete(order, node.right, entry));
+        }
+        // replaced by the nearest note from its bigger subtree
+        if (node.left == null) {
+            return node.right;
+        } else if (node.right == null) {
+            return node.left;
+        } else if (node.left.size > node.right.size) {
+            return balance(deleteLast(node.left), last(node.left), node.right);
+        } else {
+            return balance(node.left, first(node.right), deleteFirst(node.right));
+        }
+    }
+
+    private static Entry first(Node node) {
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node.entry;
+    }
+
+    private static Entry last(Node node) {
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node.entry;
+    }
+
+    private static Node deleteFirst(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(deleteFirst(node.left), node.entry, node.right);
+    }
+
+    private static Node deleteLast(Node node) {
+        if (node.right == null) {
+            return node.left;
+        }
+        return balance(node.left, node.entry, deleteLast(node.right));
+    }
+
+    // joins two subtrees that were balanced before a single note was added to or removed from one
+    // of them, rotating the bigger one if it got too big
+    private static Node balance(Node left, Entry entry, Node right) {
+        int leftSize = size(left);
+        int rightSize = size(right);
+        if (leftSize + rightSize > 1) {
+            if (rightSize > DELTA * leftSize) {
+                if (size(right.left) < RATIO * size(right.right)) {
+                    return new Node(new Node(left, entry, right.left), right.entry, right.right);
+                }
+                Node inner = right.left;
+                return new Node(new Node(left, entry, inner.left), inner.entry, new Node(inner.right, right.entry, right.right));
+            }
+            if (leftSize > DELTA * rightSize) {
+                if (size(left.right) < RATIO * size(left.left)) {
+                    return new Node(left.left, left.entry, new Node(left.right, entry, right));
+                }
+                Node inner = left.right;
+                return new Node(new Node(left.left, left.entry, inner.left), inner.entry, new Node(inner.right, entry, right));
+            }
+        }
+        return new Node(left, entry, right);
+    }
+
+    // reads the keys saved by save. the orders are built from them with build. a missing or
+    // unreadable file leaves the index empty
+    public synchronized void load() throws IOException {
+        entries.clear();
+        Arrays.fill(roots, null);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long edited = in.readLong();
+                String title = in.readUTF();
+                // the creation date is taken from the note (see withNote)
+                entries.put(id, new Entry(null, id, edited, edited, title, collator.getCollationKey(title)));
+            }
+        } catch (EOFException e) {
+            // the file was cut short, the titles of the missing notes are read again
+        } finally {
+            in.close();
+            dirty = false;
+        }
+    }
+
+    // writes the keys of the notes in the list to the file if they changed. like in SearchIndex,
+    // they are copied under the lock and written outside of it
+    public void save() throws IOException {
+        List<Entry> snapshot = new ArrayList<>();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            for (Entry entry : entries.values()) {
+                if (entry.note != null) {
+                    snapshot.add(entry);
+                }
+            }
+            dirty = false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Entry entry : snapshot) {
+                    out.writeLong(entry.id);
+                    out.writeLong(entry.edited);
+                    out.writeUTF(entry.title);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            tmp.delete();
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,440 @@
+package com.morchkovalski.notes;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+// stores every note as a row keyed by its id. the list order is kept in a separate sort key column,
+// and a new note (or a moved one) gets a key between its neighbours', so every mutation updates
+// a single row. trashed notes are only flagged, and deleted when the trash is purged. long texts
+// are stored compressed (see TextCompression) in their own column
+public class SqliteNoteStore implements NoteStore {
+
+    public static final String NAME = "sqlite";
+    public static final String DATABASE_FILE = "notes.db";
+
+    // 2: added the preview column
+    // 3: added the trashed column
+    // 4: added the text_deflated column
+    // 5: added the date_created column
+    private static final int DATABASE_VERSION = 5;
+
+    private static final String TABLE_NOTES = "notes";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_ORDER = "sort_key";
+    private static final String COLUMN_TITLE = "title";
+    private static final String COLUMN_TEXT = "text";
+    // the text compressed, or null if it's stored in COLUMN_TEXT. the text column is empty if not
+    private static final String COLUMN_TEXT_DEFLATED = "text_deflated";
+    // the preview shown in the list (see Note.makePreview), stored so that the list never reads
+    // the texts
+    private static final String COLUMN_PREVIEW = "preview";
+    private static final String COLUMN_DATE = "date_edited";
+    private static final String COLUMN_DATE_CREATED = "date_created";
+    // 1 if the note was trashed (see NoteMutation.TRASH), such rows aren't part of the list
+    private static final String COLUMN_TRASHED = "trashed";
+    private static final String NOT_TRASHED = COLUMN_TRASHED + " = 0";
+
+    // at most this many ids are passed to a single query (sqlite allows 999 arguments)
+    private static final int MAX_QUERY_IDS = 500;
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_FILE, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_NOTES + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + COLUMN_ORDER + " REAL NOT NULL, "
+                    + COLUMN_TITLE + " TEXT NOT NULL, "
+                    + COLUMN_TEXT + " TEXT NOT NULL, "
+                    + COLUMN_TEXT_DEFLATED + " BLOB, "
+                    + COLUMN_PREVIEW + " TEXT NOT NULL, "
+                    + COLUMN_DATE + " INTEGER NOT NULL, "
+                    + COLUMN_DATE_CREATED + " INTEGER NOT NULL, "
+                    + COLUMN_TRASHED + " INTEGER NOT NULL DEFAULT 0)");
+            db.execSQL("CREATE INDEX " + TABLE_NOTES + "_" + COLUMN_ORDER + " ON " + TABLE_NOTES + " (" + COLUMN_ORDER + ")");
+            db.execSQL("CREATE INDEX " + TABLE_NOTES + "_" + COLUMN_DATE + " ON " + TABLE_NOTES + " (" + COLUMN_DATE + ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + COLUMN_PREVIEW + " TEXT NOT NULL DEFAULT ''");
+                // one character more than the preview can have is enough to know where to cut it
+                Cursor cursor = db.query(TABLE_NOTES, new String[] { COLUMN_ID, "substr(" + COLUMN_TEXT + ", 1, " + (Note.PREVIEW_LENGTH + 1) + ")" },
+                        null, null, null, null, null);
+                SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NOTES + " SET " + COLUMN_PREVIEW + " = ? WHERE " + COLUMN_ID + " = ?");
+                try {
+                    while (cursor.moveToNext()) {
+                        update.bindString(1, Note.makePreview(cursor.getString(1)));
+                        update.bindLong(2, cursor.getLong(0));
+                        update.executeUpdateDelete();
+                    }
+                } finally {
+                    cursor.close();
+                    update.close();
+                }
+            }
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + COLUMN_TRASHED + " INTEGER NOT NULL DEFAULT 0");
+            }
+            if (oldVersion < 4) {
+                // the existing texts are compressed as they are edited
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + COLUMN_TEXT_DEFLATED + " BLOB");
+            }
+            if (oldVersion < 5) {
+                // the creation dates weren't kept, the existing notes are created when they were
+                // last edited
+                db.execSQL("ALTER TABLE " + TABLE_NOTES + " ADD COLUMN " + COLUMN_DATE_CREATED + " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("UPDATE " + TABLE_NOTES + " SET " + COLUMN_DATE_CREATED + " = " + COLUMN_DATE);
+            }
+        }
+    }
+
+    // ids and sort keys of the stored notes in list order, used to find the rows affected by
+    // position-based mutations and the keys of a position's neighbours
+    private static class OrderIndex {
+        long[] ids = new long[16];
+        double[] keys = new double[16];
+        int size = 0;
+
+        void add(int position, long id, double key) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            System.arraycopy(keys, position, keys, position + 1, size - position);
+            ids[position] = id;
+            keys[position] = key;
+            size++;
+        }
+
+        void remove(int position) {
+            System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+            System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+            size--;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private final Context context;
+    private final DatabaseHelper helper;
+    private final OrderIndex index = new OrderIndex();
+    // false until the notes left in the trash by the previous run are deleted
+    private boolean trashPurged = false;
+
+    public SqliteNoteStore(Context context) {
+        this.context = context;
+        this.helper = new DatabaseHelper(context);
+    }
+
+    @Override
+    public boolean exists() {
+        return context.getDatabasePath(DATABASE_FILE).exists();
+    }
+
+    // unless withText is true, only the stored previews are read, so the time and memory needed
+    // to load the list don't depend on how long the notes are
+    @Override
+    public synchronized List<Note> load(boolean withText) throws IOException {
+        List<Note> noteList = new ArrayList<>();
+        index.clear();
+        String[] columns = withText
+                ? new String[] { COLUMN_ID, COLUMN_ORDER, COLUMN_TITLE, COLUMN_TEXT, COLUMN_DATE, COLUMN_DATE_CREATED, COLUMN_TEXT_DEFLATED }
+                : new String[] { COLUMN_ID, COLUMN_ORDER, COLUMN_TITLE, COLUMN_PREVIEW, COLUMN_DATE, COLUMN_DATE_CREATED };
+        try {
+            Cursor cursor = helper.getReadableDatabase().query(TABLE_NOTES, columns,
+                    NOT_TRASHED, null, null, null, COLUMN_ORDER);
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    index.add(index.size, id, cursor.getDouble(1));
+                    String title = cursor.getString(2);
+                    Date date = new Date(cursor.getLong(4));
+                    Date dateCreated = new Date(cursor.getLong(5));
+                    noteList.add(withText ? new Note(id, getText(cursor, 3, 6), title, dateCreated, date) : Note.withoutText(id, title, cursor.getString(3), dateCreated, date));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("can't read the note database", e);
+        }
+        return noteList;
+    }
+
+    // reads only the ids and dates, so the list takes the same small amount of memory per note no
+    // matter how long the notes are
+    @Override
+    public synchronized List<Note> loadWithoutContents() throws IOException {
+        List<Note> noteList = new ArrayList<>();
+        index.clear();
+        try {
+            Cursor cursor = helper.getReadableDatabase().query(TABLE_NOTES,
+                    new String[] { COLUMN_ID, COLUMN_ORDER, COLUMN_DATE, COLUMN_DATE_CREATED },
+                    NOT_TRASHED, null, null, null, COLUMN_ORDER);
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    index.add(index.size, id, cursor.getDouble(1));
+                    noteList.add(Note.withoutContents(id, new Date(cursor.getLong(3)), new Date(cursor.getLong(2))));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("can't read the note database", e);
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized List<Note> load(long[] ids, boolean withText) throws IOException {
+        List<Note> noteList = new ArrayList<>(ids.length);
+        String[] columns = withText
+                ? new String[] { COLUMN_ID, COLUMN_TITLE, COLUMN_TEXT, COLUMN_DATE, COLUMN_DATE_CREATED, COLUMN_TEXT_DEFLATED }
+                : new String[] { COLUMN_ID, COLUMN_TITLE, COLUMN_PREVIEW, COLUMN_DATE, COLUMN_DATE_CREATED };
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            for (int start = 0; start < ids.length; start += MAX_QUERY_IDS) {
+                int end = Math.min(start + MAX_QUERY_IDS, ids.length);
+                StringBuilder selection = new StringBuilder(COLUMN_ID + " IN (");
+                String[] args = new String[end - start];
+                for (int i = start; i < end; i++) {
+                    selection.append(i > start ? ", ?" : "?");
+                    args[i - start] = Long.toString(ids[i]);
+                }
+                selection.append(")");
+                Cursor cursor = db.query(TABLE_NOTES, columns, selection.toString(), args, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        String title = cursor.getString(1);
+                        Date date = new Date(cursor.getLong(3));
+                        Date dateCreated = new Date(cursor.getLong(4));
+                        noteList.add(withText ? new Note(id, getText(cursor, 2, 5), title, dateCreated, date) : Note.withoutText(id, title, cursor.getString(2), dateCreated, date));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("can't read the note database", e);
+        }
+        return noteList;
+    }
+
+    @Override
+    public synchronized String loadText(long id) throws IOException {
+        try {
+            Cursor cursor = helper.getReadableDatabase().query(TABLE_NOTES, new String[] { COLUMN_TEXT, COLUMN_TEXT_DEFLATED },
+                    COLUMN_ID + " = ?", new String[] { Long.toString(id) }, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    throw new IOException("no note with id " + id);
+                }
+                return getText(cursor, 0, 1);
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("can't read the note database", e);
+        }
+    }
+
+    @Override
+    public synchronized void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                if (!trashPurged) {
+                    // nothing can be restored from the previous run's trash anymore
+                    db.delete(TABLE_NOTES, COLUMN_TRASHED + " = 1", null);
+                }
+                for (NoteMutation mutation : mutations) {
+                    apply(db, mutation);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            trashPurged = true;
+        } catch (SQLException e) {
+            // the index may not match the database anymore
+            load(false);
+            throw new IOException("can't update the note database", e);
+        }
+    }
+
+    private void apply(SQLiteDatabase db, NoteMutation mutation) {
+        switch (mutation.type) {
+            case NoteMutation.INSERT: {
+                double key = newKey(db, mutation.position);
+                index.add(mutation.position, mutation.note.getId(), key);
+                db.insertOrThrow(TABLE_NOTES, null, toValues(mutation.note, key));
+                break;
+            }
+            case NoteMutation.REPLACE: {
+                long oldId = index.ids[mutation.position];
+                ContentValues values = toValues(mutation.note, index.keys[mutation.position]);
+                index.ids[mutation.position] = mutation.note.getId();
+                db.update(TABLE_NOTES, values, COLUMN_ID + " = ?", new String[] { Long.toString(oldId) });
+                break;
+            }
+            case NoteMutation.DELETE: {
+                long id = index.ids[mutation.position];
+                index.remove(mutation.position);
+                db.delete(TABLE_NOTES, COLUMN_ID + " = ?", new String[] { Long.toString(id) });
+                break;
+            }
+            case NoteMutation.TRASH: {
+                long id = index.ids[mutation.position];
+                index.remove(mutation.position);
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_TRASHED, 1);
+                db.update(TABLE_NOTES, values, COLUMN_ID + " = ?", new String[] { Long.toString(id) });
+                break;
+            }
+            case NoteMutation.RESTORE: {
+                long id = mutation.note.getId();
+                double key = newKey(db, mutation.position);
+                index.add(mutation.position, id, key);
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_TRASHED, 0);
+                values.put(COLUMN_ORDER, key);
+                if (db.update(TABLE_NOTES, values, COLUMN_ID + " = ?", new String[] { Long.toString(id) }) == 0) {
+                    // the row is gone if the note was trashed while a replaceAll was pending, since
+                    // the list written by it didn't have the note anymore. the notes of a pending
+                    // replaceAll all have their text (see NoteRepository.setAll), so it's written again
+                    if (!mutation.note.hasText()) {
+                        throw new SQLException("note " + id + " isn't in the database anymore");
+                    }
+                    db.insertOrThrow(TABLE_NOTES, null, toValues(mutation.note, key));
+                }
+                break;
+            }
+            case NoteMutation.PURGE:
+                db.delete(TABLE_NOTES, COLUMN_TRASHED + " = 1", null);
+                break;
+            case NoteMutation.MOVE: {
+                long id = index.ids[mutation.position];
+                index.remove(mutation.position);
+                double key = newKey(db, mutation.to);
+                index.add(mutation.to, id, key);
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_ORDER, key);
+                db.update(TABLE_NOTES, values, COLUMN_ID + " = ?", new String[] { Long.toString(id) });
+                break;
+            }
+        }
+    }
+
+    // returns a sort key for a note inserted at the specified position
+    private double newKey(SQLiteDatabase db, int position) {
+        double key = keyBetween(position);
+        if (Double.isNaN(key)) {
+            // there are no more doubles between the neighbours, spread all keys out again
+            renumber(db);
+            key = keyBetween(position);
+        }
+        return key;
+    }
+
+    // returns a key between the keys at position - 1 and position, or NaN if there is none
+    private double keyBetween(int position) {
+        if (index.size == 0) {
+            return 0;
+        } else if (position == 0) {
+            return index.keys[0] - 1;
+        } else if (position == index.size) {
+            return index.keys[index.size - 1] + 1;
+        }
+        double before = index.keys[position - 1];
+        double after = index.keys[position];
+        double key = before + (after - before) / 2;
+        return key > before && key < after ? key : Double.NaN;
+    }
+
+    private void renumber(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NOTES + " SET " + COLUMN_ORDER + " = ? WHERE " + COLUMN_ID + " = ?");
+        for (int i = 0; i < index.size; i++) {
+            index.keys[i] = i;
+            update.bindDouble(1, i);
+            update.bindLong(2, index.ids[i]);
+            update.executeUpdateDelete();
+        }
+        update.close();
+    }
+
+    // returns the text from the COLUMN_TEXT and COLUMN_TEXT_DEFLATED columns at the specified indexes
+    private static String getText(Cursor cursor, int textIndex, int deflatedIndex) throws IOException {
+        if (cursor.isNull(deflatedIndex)) {
+            return cursor.getString(textIndex);
+        }
+        return TextCompression.decompress(cursor.getBlob(deflatedIndex));
+    }
+
+    private static ContentValues toValues(Note note, double key) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, note.getId());
+        values.put(COLUMN_ORDER, key);
+        values.put(COLUMN_TITLE, note.getTitle());
+        byte[] deflated = TextCompression.compress(note.getText());
+        values.put(COLUMN_TEXT, deflated != null ? "" : note.getText());
+        values.put(COLUMN_TEXT_DEFLATED, deflated);
+        values.put(COLUMN_PREVIEW, note.getPreview());
+        values.put(COLUMN_DATE, note.getDateMillis());
+        values.put(COLUMN_DATE_CREATED, note.getDateCreatedMillis());
+        return values;
+    }
+
+    @Override
+    public synchronized void replaceAll(List<Note> noteList) throws IOException {
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.delete(TABLE_NOTES, null, null);
+                index.clear();
+                for (int i = 0; i < noteList.size(); i++) {
+                    Note note = noteList.get(i);
+                    index.add(i, note.getId(), i);
+                    db.insertOrThrow(TABLE_NOTES, null, toValues(note, i));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            load(false);
+            throw new IOException("can't write the note database", e);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        helper.close();
+        context.deleteDatabase(DATABASE_FILE);
+        index.clear();
+    }
+
+}
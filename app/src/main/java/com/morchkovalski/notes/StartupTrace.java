@@ -0,0 +1,86 @@
+package com.morchkovalski.notes;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+// measures a cold start: the time from the process starting to the first frame, and to the first
+// frame showing the notes (or "No notes"). both are recorded once per process, in NoteMetrics
+// and the log, and the second is also reported as fully drawn, which shows up in the activity
+// manager's log and in systrace. only used on the main thread
+public final class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    // System.nanoTime when the process started, or -1 if it isn't a cold start being measured
+    private static long processStart = -1;
+    private static boolean firstFrameShown = false;
+    private static boolean contentShown = false;
+
+    private StartupTrace() {
+    }
+
+    // called when the application is created
+    public static void processStarted() {
+        long now = System.nanoTime();
+        processStart = now;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // the process was forked before the application was created
+            processStart = now - (SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime()) * 1000000L;
+        }
+    }
+
+    // called when the first activity is created, records when its first frame is drawn
+    public static void activityCreated(Activity activity) {
+        if (processStart == -1 || firstFrameShown) {
+            return;
+        }
+        firstFrameShown = true;
+        onNextFrame(activity, new Runnable() {
+            @Override
+            public void run() {
+                record(NoteMetrics.STARTUP_FIRST_FRAME, "first frame");
+            }
+        });
+    }
+
+    // called when the note list is shown for the first time, records when that frame is drawn
+    public static void contentShown(final Activity activity) {
+        if (processStart == -1 || contentShown) {
+            return;
+        }
+        contentShown = true;
+        onNextFrame(activity, new Runnable() {
+            @Override
+            public void run() {
+                record(NoteMetrics.STARTUP_FIRST_CONTENT, "first content");
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    activity.reportFullyDrawn();
+                }
+            }
+        });
+    }
+
+    private static void record(NoteMetrics.Timer timer, String name) {
+        timer.record(processStart);
+        Log.i(TAG, name + " after " + (System.nanoTime() - processStart) / 1000000 + " ms");
+    }
+
+    // runs the task just before the next frame of the activity's window is drawn
+    private static void onNextFrame(Activity activity, final Runnable task) {
+        final View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                task.run();
+                return true;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.morchkovalski.notes;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// compression of long note texts for the stores. texts of at least MIN_LENGTH chars are deflated
+// with a preset dictionary of words and markup that are common in notes, logs and transcripts,
+// which helps most with texts too short to have much history of their own. every store keeps a
+// flag with a text saying whether it's compressed, so short notes are read and written as before.
+// the dictionary can never change, the stored texts need the very same one to be inflated
+public final class TextCompression {
+
+    // shorter texts are always stored as they are
+    public static final int MIN_LENGTH = 1024;
+
+    // deflate refers to the end of the dictionary with the shortest distances, so the most common
+    // strings are last
+    private static final byte[] DICTIONARY = utf8(
+            "Caused by: java.lang.NullPointerException\n\tat java.lang.Thread.run(Thread.java:\n"
+            + "\tat android.os.Handler.dispatchMessage(Handler.java:\n\tat android.os.Looper.loop(Looper.java:\n"
+            + "Traceback (most recent call last):\n  File \"\", line \nException Error: failed Warning: \n"
+            + "E/AndroidRuntime: FATAL EXCEPTION: main\nW/System.err: D/ I/ V/ \n"
+            + "HTTP/1.1 200 OK\nGET POST /api/v1/ https://www. http:// .com .org .html .json\n"
+            + "[ERROR] [WARN] [INFO] [DEBUG] ERROR WARN INFO DEBUG TRACE \n"
+            + "2015-01- 2016-01- 2017-01- 00:00:00.000 T12:00:00Z \n"
+            + "Monday Tuesday Wednesday Thursday Friday Saturday Sunday \n"
+            + "January February March April May June July August September October November December \n"
+            + "Interviewer: Speaker 1: Speaker 2: Q: A: [inaudible] [laughter] [crosstalk] \n"
+            + "TODO: - [ ] - [x] * 1. 2. 3. \n"
+            + "because through between should would could about after before their there these those "
+            + "which where while other people really think going know just like what when with from "
+            + "have this that will your they been were said each make more time than them some into "
+            + "only also back well then very even most first year work know want need good great new "
+            + "and the for you are not but all can her was one our out day get has him his how man "
+            + "now old see two way who did its let put say she too use of to in it is on as at be by "
+            + "or an if so no up do go me my we he I a \n"
+            + ", the . The and the of the to the in the on the for the is a it is I am I have we are "
+            + "you can this is that is to be of a in a to a and a with the at the from the \n");
+
+    // the write thread compresses every text it stores, so the (de)compressors are kept per thread
+    // instead of allocating their native buffers every time
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private TextCompression() {
+    }
+
+    // returns the text deflated, or null if it's too short or doesn't get at least 1/8 smaller
+    public static byte[] compress(String text) {
+        if (text.length() < MIN_LENGTH) {
+            return null;
+        }
+        byte[] raw = utf8(text);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+        // anything that doesn't fit in here isn't worth it
+        byte[] out = new byte[raw.length - raw.length / 8];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                return null;
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    public static String decompress(byte[] data) throws IOException {
+        return decompress(data, 0, data.length, Integer.MAX_VALUE);
+    }
+
+    // inflates a text deflated by compress. at most maxBytes of its UTF-8 bytes are inflated, so
+    // that a preview doesn't need the whole text
+    public static String decompress(byte[] data, int offset, int length, int maxBytes) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        // deflated texts usually are a third to a tenth of their size
+        byte[] out = new byte[(int) Math.min(maxBytes, Math.max(4L * length, 1024))];
+        int size = 0;
+        try {
+            while (size < maxBytes) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, (int) Math.min(maxBytes, 2L * out.length));
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                size += n;
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished()) {
+                        break;
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("the compressed text is cut short");
+                    }
+                }
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("can't inflate the text", e);
+        }
+        return new String(out, 0, size, "UTF-8");
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // every Java platform has UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.morchkovalski.notes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// writes journals, breaks them the way a crash (or a bad disk) would and checks what is recovered
+public class JournalNoteStoreTest {
+
+    private static final int MAGIC = 0x4e4a524e;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File file;
+    private final List<Note> noteList = new ArrayList<>();
+    // the size of the log after each write
+    private final List<Long> sizes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+        file = new File(dir, JournalNoteStore.JOURNAL_FILE);
+    }
+
+    @Test
+    public void writesAreLoaded() throws IOException {
+        writeNotes(3);
+        assertNotes(3, new JournalNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void tornFrameIsDropped() throws IOException {
+        writeNotes(3);
+        truncate(file.length() - 3);
+
+        JournalNoteStore store = new JournalNoteStore(dir);
+        assertNotes(2, store.load(true));
+        assertEquals((long) sizes.get(1), file.length());
+
+        // later writes are appended after the last complete frame
+        noteList.remove(2);
+        insert(store, note(2));
+        assertNotes(3, new JournalNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void frameWithBadChecksumIsDropped() throws IOException {
+        writeNotes(3);
+        flipByte(file.length() - 1);
+
+        assertNotes(2, new JournalNoteStore(dir).load(true));
+        assertEquals((long) sizes.get(1), file.length());
+    }
+
+    @Test
+    public void garbageAfterTheLastFrameIsDropped() throws IOException {
+        writeNotes(2);
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {0, 0, 0, 3, 1, 2, 3, 4, 9, 9, 9});
+        out.close();
+
+        assertNotes(2, new JournalNoteStore(dir).load(true));
+        assertEquals((long) sizes.get(1), file.length());
+    }
+
+    @Test
+    public void brokenHeaderChecksAllFrames() throws IOException {
+        writeNotes(3);
+        new JournalNoteStore(dir).load(true);
+        // a broken checkpoint, the header's checksum doesn't match anymore
+        flipByte(10);
+        truncate(file.length() - 3);
+
+        assertNotes(2, new JournalNoteStore(dir).load(true));
+        assertEquals(MAGIC, readInt(0));
+        // the header was written again
+        assertNotes(2, new JournalNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void brokenRecordInACompleteFrameFailsTheLoad() throws IOException {
+        writeNotes(1);
+        // a frame with the right checksum, holding a record of an unknown type
+        byte[] payload = {42, 0, 0, 0, 0};
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        out.close();
+
+        try {
+            new JournalNoteStore(dir).load(true);
+            fail("a broken record was dropped");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void oldFormatIsUpgraded() throws IOException {
+        // a log written before there were frames: the records alone, the last one cut short
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        for (int i = 0; i < 3; i++) {
+            writeUnframedInsert(out, i, note(i));
+        }
+        out.close();
+        truncate(file.length() - 2);
+
+        assertNotes(2, new JournalNoteStore(dir).load(true));
+        assertEquals(MAGIC, readInt(0));
+        assertNotes(2, new JournalNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void trashedNoteIsRestored() throws IOException {
+        JournalNoteStore store = new JournalNoteStore(dir);
+        store.load(true);
+        writeNotes(store, 3);
+        Note trashed = noteList.get(1);
+        apply(store, NoteMutation.trash(1, trashed));
+        apply(store, NoteMutation.restore(0, trashed));
+
+        List<Note> loaded = new JournalNoteStore(dir).load(true);
+        assertEquals(3, loaded.size());
+        assertEquals(trashed.getId(), loaded.get(0).getId());
+        assertEquals(trashed.getText(), loaded.get(0).getText());
+    }
+
+    @Test
+    public void noteTrashedBeforeReplaceAllIsRestored() throws IOException {
+        JournalNoteStore store = new JournalNoteStore(dir);
+        store.load(true);
+        writeNotes(store, 3);
+        Note trashed = noteList.get(1);
+        apply(store, NoteMutation.trash(1, trashed));
+        store.replaceAll(new ArrayList<>(noteList));
+        apply(store, NoteMutation.restore(1, trashed));
+
+        assertNotes(3, new JournalNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void singleNotesAreRead() throws IOException {
+        writeNotes(3);
+        JournalNoteStore store = new JournalNoteStore(dir);
+        store.load(true);
+        Note replaced = new Note(1, "new text", "new title", new Date(5000));
+        apply(store, NoteMutation.replace(1, replaced));
+        apply(store, NoteMutation.delete(0));
+
+        List<Note> loaded = store.load(new long[] { 0, 1, 2, 99 }, true);
+        assertEquals(2, loaded.size());
+        assertEquals("new text", store.loadText(1));
+        assertEquals(note(2).getText(), store.loadText(2));
+        try {
+            store.loadText(0);
+            fail("a deleted note was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void creationDateIsKept() throws IOException {
+        JournalNoteStore store = new JournalNoteStore(dir);
+        store.load(true);
+        insert(store, new Note(7, "text", "title", new Date(500), new Date(1000)));
+        apply(store, NoteMutation.replace(0, noteList.get(0).edited("new text", "title")));
+
+        Note loaded = new JournalNoteStore(dir).load(true).get(0);
+        assertEquals(500, loaded.getDateCreatedMillis());
+        assertEquals("new text", loaded.getText());
+    }
+
+    private static Note note(int i) {
+        return new Note(i, "text of note " + i, "note " + i, new Date(1000 + i));
+    }
+
+    // writes the notes with one write each
+    private void writeNotes(int count) throws IOException {
+        JournalNoteStore store = new JournalNoteStore(dir);
+        store.load(true);
+        writeNotes(store, count);
+    }
+
+    private void writeNotes(JournalNoteStore store, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            insert(store, note(i));
+        }
+    }
+
+    private void insert(JournalNoteStore store, Note note) throws IOException {
+        apply(store, NoteMutation.insert(noteList.size(), note));
+    }
+
+    private void apply(JournalNoteStore store, NoteMutation mutation) throws IOException {
+        mutation.applyTo(noteList);
+        store.apply(Collections.singletonList(mutation), new ArrayList<>(noteList));
+        sizes.add(store.size());
+    }
+
+    // checks that the list has the first count notes written by writeNotes
+    private static void assertNotes(int count, List<Note> loaded) {
+        assertEquals(count, loaded.size());
+        for (int i = 0; i < count; i++) {
+            Note expected = note(i);
+            assertEquals(expected.getId(), loaded.get(i).getId());
+            assertEquals(expected.getTitle(), loaded.get(i).getTitle());
+            assertEquals(expected.getText(), loaded.get(i).getText());
+            assertEquals(expected.getDateMillis(), loaded.get(i).getDateMillis());
+            // records written before notes had a creation date are created when they were saved
+            assertEquals(expected.getDateCreatedMillis(), loaded.get(i).getDateCreatedMillis());
+        }
+    }
+
+    // an INSERT record: op, position, id, date, title and text
+    private static void writeUnframedInsert(DataOutputStream out, int position, Note note) throws IOException {
+        out.writeByte(NoteMutation.INSERT);
+        out.writeInt(position);
+        out.writeLong(note.getId());
+        out.writeLong(note.getDateMillis());
+        byte[] title = note.getTitle().getBytes("UTF-8");
+        out.writeInt(title.length);
+        out.write(title);
+        byte[] text = note.getText().getBytes("UTF-8");
+        out.writeInt(text.length);
+        out.write(text);
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flipByte(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int readInt(long offset) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) offset + 4];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes).getInt((int) offset);
+        } finally {
+            in.close();
+        }
+    }
+
+}
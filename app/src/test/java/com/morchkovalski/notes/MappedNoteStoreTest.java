@@ -0,0 +1,230 @@
+package com.morchkovalski.notes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// writes mapped note files, leaves them the way a crash in the middle of a write would and checks
+// the table patching and compaction
+public class MappedNoteStoreTest {
+
+    // offset of the table offset within the header
+    private static final int HEADER_TABLE = 8;
+    // the size of the long texts, so that their records add up to more than the file is ever left
+    // uncompacted at
+    private static final int LONG_TEXT_LENGTH = 200 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File file;
+    private final List<Note> noteList = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+        file = new File(dir, MappedNoteStore.DATA_FILE);
+    }
+
+    @Test
+    public void writesAreLoaded() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        writeNotes(store, 3);
+        apply(store, NoteMutation.move(0, 2));
+
+        List<Note> loaded = new MappedNoteStore(dir).load(true);
+        assertEquals(3, loaded.size());
+        assertEquals(1, loaded.get(0).getId());
+        assertEquals(0, loaded.get(2).getId());
+        assertEquals(note(0).getText(), loaded.get(2).getText());
+    }
+
+    @Test
+    public void singleReplaceIsPatchedInPlace() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        writeNotes(store, 3);
+        long table = readLong(HEADER_TABLE);
+        long size = file.length();
+        apply(store, NoteMutation.replace(1, noteList.get(1).edited("new text", "new title")));
+
+        // only the new record was appended, the table stayed where it was
+        assertEquals(table, readLong(HEADER_TABLE));
+        assertTrue(file.length() < size + 100);
+        List<Note> loaded = new MappedNoteStore(dir).load(true);
+        assertEquals(3, loaded.size());
+        assertEquals("new text", loaded.get(1).getText());
+        assertEquals(note(1).getDateCreatedMillis(), loaded.get(1).getDateCreatedMillis());
+        assertEquals(note(2).getText(), loaded.get(2).getText());
+    }
+
+    @Test
+    public void writeCutShortIsIgnored() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        writeNotes(store, 3);
+        // records and a table appended without the header pointing to them yet
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 42, 1, 2, 3});
+        out.close();
+
+        store = new MappedNoteStore(dir);
+        assertNotes(3, store.load(true));
+        // the next write goes after the garbage and is found through the table
+        apply(store, NoteMutation.insert(3, note(3)));
+        assertNotes(4, new MappedNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void rewriteCutShortIsIgnored() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        writeNotes(store, 3);
+        // the temporary file of a rewrite killed before it was renamed
+        FileOutputStream out = new FileOutputStream(new File(dir, MappedNoteStore.DATA_FILE + ".tmp"));
+        out.write(new byte[] {0x4e, 0x4f, 0x54, 0x42, 0, 0, 0, 3, 9, 9});
+        out.close();
+
+        store = new MappedNoteStore(dir);
+        assertNotes(3, store.load(true));
+        store.replaceAll(new ArrayList<>(noteList));
+        assertNotes(3, new MappedNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void fileIsCompacted() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        insert(store, longNote(0, 0));
+        long size = file.length();
+        replaceRepeatedly(store);
+
+        assertTrue(file.length() < 3 * size);
+    }
+
+    @Test
+    public void restoredNoteLetsTheFileCompact() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        insert(store, longNote(0, 0));
+        long size = file.length();
+        Note note = noteList.get(0);
+        apply(store, NoteMutation.trash(0, note));
+        apply(store, NoteMutation.restore(0, note));
+        replaceRepeatedly(store);
+
+        assertTrue(file.length() < 3 * size);
+        assertEquals(note.getId(), new MappedNoteStore(dir).load(false).get(0).getId());
+    }
+
+    @Test
+    public void noteRestoredAndEditedInTheSameWriteLetsTheFileCompact() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        insert(store, longNote(0, 0));
+        long size = file.length();
+        Note note = noteList.get(0);
+        apply(store, NoteMutation.trash(0, note));
+        // the note leaves the trash, even though its old record isn't used again
+        NoteMutation restore = NoteMutation.restore(0, note);
+        NoteMutation replace = NoteMutation.replace(0, longNote(0, 1));
+        restore.applyTo(noteList);
+        replace.applyTo(noteList);
+        store.apply(Arrays.asList(restore, replace), new ArrayList<>(noteList));
+        replaceRepeatedly(store);
+
+        assertTrue(file.length() < 3 * size);
+    }
+
+    @Test
+    public void trashedNoteIsKeptUntilPurged() throws IOException {
+        MappedNoteStore store = new MappedNoteStore(dir);
+        insert(store, longNote(0, 0));
+        insert(store, note(1));
+        Note trashed = noteList.get(0);
+        apply(store, NoteMutation.trash(0, trashed));
+        // the file isn't compacted while the trashed note's record can still be restored
+        replaceRepeatedly(store);
+        // restored from its record, as the repository does once the notes' texts were dropped
+        apply(store, NoteMutation.restore(0, Note.withoutContents(trashed.getId(), trashed.getDateCreated(), trashed.getDate())));
+
+        List<Note> loaded = new MappedNoteStore(dir).load(true);
+        assertEquals(2, loaded.size());
+        assertEquals(trashed.getText(), loaded.get(0).getText());
+
+        apply(store, NoteMutation.trash(0, trashed));
+        apply(store, NoteMutation.purge());
+        assertEquals(1, new MappedNoteStore(dir).load(true).size());
+    }
+
+    private static Note note(int i) {
+        return new Note(i, "text of note " + i, "note " + i, new Date(500 + i), new Date(1000 + i));
+    }
+
+    // a note with a text that doesn't compress much, so that its records take up most of the file
+    private static Note longNote(int i, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(LONG_TEXT_LENGTH);
+        for (int j = 0; j < LONG_TEXT_LENGTH; j++) {
+            text.append((char) (' ' + random.nextInt(95)));
+        }
+        return new Note(i, text.toString(), "long note " + i, new Date(500 + i), new Date(1000 + i));
+    }
+
+    // saves ten edits of the first note, each one in its own write
+    private void replaceRepeatedly(MappedNoteStore store) throws IOException {
+        for (int i = 0; i < 10; i++) {
+            Note note = noteList.get(0);
+            apply(store, NoteMutation.replace(0, longNote((int) note.getId(), i + 2)));
+        }
+    }
+
+    private void writeNotes(MappedNoteStore store, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            insert(store, note(i));
+        }
+    }
+
+    private void insert(MappedNoteStore store, Note note) throws IOException {
+        apply(store, NoteMutation.insert(noteList.size(), note));
+    }
+
+    private void apply(MappedNoteStore store, NoteMutation mutation) throws IOException {
+        mutation.applyTo(noteList);
+        store.apply(Collections.singletonList(mutation), new ArrayList<>(noteList));
+    }
+
+    // checks that the list has the first count notes written by writeNotes
+    private static void assertNotes(int count, List<Note> loaded) {
+        assertEquals(count, loaded.size());
+        for (int i = 0; i < count; i++) {
+            Note expected = note(i);
+            assertEquals(expected.getId(), loaded.get(i).getId());
+            assertEquals(expected.getTitle(), loaded.get(i).getTitle());
+            assertEquals(expected.getText(), loaded.get(i).getText());
+            assertEquals(expected.getDateMillis(), loaded.get(i).getDateMillis());
+            assertEquals(expected.getDateCreatedMillis(), loaded.get(i).getDateCreatedMillis());
+        }
+    }
+
+    private long readLong(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+}
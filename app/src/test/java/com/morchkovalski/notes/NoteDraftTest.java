@@ -0,0 +1,210 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+// replays drafts written in the layout NoteDraft documents, including ones cut short by the app
+// being killed
+public class NoteDraftTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Note note = new Note(42, "hello world", "title", new Date(1000));
+    private Context context;
+    private File file;
+
+    @Before
+    public void setUp() {
+        final File filesDir = folder.getRoot();
+        context = new ContextWrapper(null) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+        file = new File(new File(filesDir, NoteDraft.DRAFTS_DIR), note.getId() + ".draft");
+    }
+
+    @Test
+    public void noDraft() {
+        assertNull(new NoteDraft(context, note).read(note));
+    }
+
+    @Test
+    public void splicesAreReplayed() throws IOException {
+        DataOutputStream out = create(note.getDateMillis());
+        writeSplice(out, NoteDraft.FIELD_TEXT, 5, 6, " there");
+        writeSplice(out, NoteDraft.FIELD_TEXT, 0, 1, "J");
+        writeSplice(out, NoteDraft.FIELD_TITLE, 5, 0, "!");
+        out.close();
+
+        String[] restored = new NoteDraft(context, note).read(note);
+        assertArrayEquals(new String[] {"title!", "Jello there"}, restored);
+    }
+
+    @Test
+    public void multiByteTextIsReplayed() throws IOException {
+        DataOutputStream out = create(note.getDateMillis());
+        writeSplice(out, NoteDraft.FIELD_TEXT, 11, 0, " zażółć");
+        out.close();
+
+        String[] restored = new NoteDraft(context, note).read(note);
+        assertArrayEquals(new String[] {"title", "hello world zażółć"}, restored);
+    }
+
+    @Test
+    public void tornSpliceIsDropped() throws IOException {
+        DataOutputStream out = create(note.getDateMillis());
+        writeSplice(out, NoteDraft.FIELD_TEXT, 5, 6, " there");
+        out.close();
+        long valid = file.length();
+        out = new DataOutputStream(new FileOutputStream(file, true));
+        writeSplice(out, NoteDraft.FIELD_TITLE, 0, 5, "a new title");
+        out.close();
+        truncate(file.length() - 3);
+
+        String[] restored = new NoteDraft(context, note).read(note);
+        assertArrayEquals(new String[] {"title", "hello there"}, restored);
+        // the broken splice is cut off, so the next checkpoint appends after the valid ones
+        assertEquals(valid, file.length());
+    }
+
+    @Test
+    public void spliceWithBadChecksumIsDropped() throws IOException {
+        DataOutputStream out = create(note.getDateMillis());
+        writeSplice(out, NoteDraft.FIELD_TEXT, 0, 5, "HELLO");
+        out.close();
+        long valid = file.length();
+        out = new DataOutputStream(new FileOutputStream(file, true));
+        writeSplice(out, NoteDraft.FIELD_TEXT, 6, 5, "there");
+        writeSplice(out, NoteDraft.FIELD_TITLE, 0, 0, "a ");
+        out.close();
+        // a bit flipped in the inserted text of the second splice, which still fits in the note
+        flipByte(valid + 13);
+
+        String[] restored = new NoteDraft(context, note).read(note);
+        assertArrayEquals(new String[] {"title", "HELLO world"}, restored);
+        assertEquals(valid, file.length());
+    }
+
+    @Test
+    public void spliceOutsideOfTheTextIsDropped() throws IOException {
+        DataOutputStream out = create(note.getDateMillis());
+        writeSplice(out, NoteDraft.FIELD_TEXT, 0, 5, "HELLO");
+        out.close();
+        long valid = file.length();
+        out = new DataOutputStream(new FileOutputStream(file, true));
+        writeSplice(out, NoteDraft.FIELD_TEXT, 100, 0, "garbage");
+        out.close();
+
+        String[] restored = new NoteDraft(context, note).read(note);
+        assertArrayEquals(new String[] {"title", "HELLO world"}, restored);
+        assertEquals(valid, file.length());
+    }
+
+    @Test
+    public void draftOfAnOlderVersionIsDeleted() throws IOException {
+        DataOutputStream out = create(note.getDateMillis() - 1);
+        writeSplice(out, NoteDraft.FIELD_TEXT, 0, 0, "old ");
+        out.close();
+
+        assertNull(new NoteDraft(context, note).read(note));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void draftWithoutChecksumsIsReplayed() throws IOException {
+        // version 1, before the splices had checksums
+        DataOutputStream out = create(1, note.getDateMillis());
+        writeUnchecked(out, NoteDraft.FIELD_TEXT, 5, 6, " there");
+        writeUnchecked(out, NoteDraft.FIELD_TITLE, 5, 0, "!");
+        out.close();
+
+        String[] restored = new NoteDraft(context, note).read(note);
+        assertArrayEquals(new String[] {"title!", "hello there"}, restored);
+    }
+
+    @Test
+    public void tornHeaderIsDeleted() throws IOException {
+        DataOutputStream out = create(note.getDateMillis());
+        out.close();
+        truncate(10);
+
+        assertNull(new NoteDraft(context, note).read(note));
+        assertFalse(file.exists());
+    }
+
+    private DataOutputStream create(long noteDate) throws IOException {
+        return create(NoteDraft.FORMAT_VERSION, noteDate);
+    }
+
+    // creates the draft file with its header: version, note id and the date of the saved note
+    private DataOutputStream create(int version, long noteDate) throws IOException {
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(version);
+        out.writeLong(note.getId());
+        out.writeLong(noteDate);
+        return out;
+    }
+
+    private static void writeSplice(DataOutputStream out, int field, int offset, int removed, String inserted) throws IOException {
+        writeUnchecked(out, field, offset, removed, inserted);
+        out.writeInt(NoteDraft.checksum(field, offset, removed, inserted.getBytes("UTF-8")));
+    }
+
+    // a splice without its checksum, as version 1 wrote them
+    private static void writeUnchecked(DataOutputStream out, int field, int offset, int removed, String inserted) throws IOException {
+        byte[] bytes = inserted.getBytes("UTF-8");
+        out.writeByte(field);
+        out.writeInt(offset);
+        out.writeInt(removed);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flipByte(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+}
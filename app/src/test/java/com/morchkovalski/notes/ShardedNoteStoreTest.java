@@ -0,0 +1,161 @@
+package com.morchkovalski.notes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// writes sharded notes, leaves the files the way a crash in the middle of a write would and checks
+// what is loaded and which text files are kept
+public class ShardedNoteStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File notesDir;
+    private final List<Note> noteList = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+        notesDir = new File(dir, ShardedNoteStore.NOTES_DIR);
+    }
+
+    @Test
+    public void writesAreLoaded() throws IOException {
+        ShardedNoteStore store = new ShardedNoteStore(dir);
+        writeNotes(store, 3);
+        assertNotes(3, new ShardedNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void manifestHasTheListWithoutTexts() throws IOException {
+        ShardedNoteStore store = new ShardedNoteStore(dir);
+        writeNotes(store, 3);
+        apply(store, NoteMutation.move(0, 2));
+
+        List<Note> loaded = new ShardedNoteStore(dir).load(false);
+        assertEquals(3, loaded.size());
+        assertEquals(1, loaded.get(0).getId());
+        assertEquals(note(0).getTitle(), loaded.get(2).getTitle());
+        assertEquals(note(0).getDateCreatedMillis(), loaded.get(2).getDateCreatedMillis());
+        assertFalse(loaded.get(2).hasText());
+    }
+
+    @Test
+    public void writesCutShortAreIgnored() throws IOException {
+        ShardedNoteStore store = new ShardedNoteStore(dir);
+        writeNotes(store, 3);
+        // the temporary files of a text and a manifest written when the app was killed, and the
+        // text of a note that never made it into the manifest
+        write(new File(notesDir, "1.txt.tmp"), "new text of note 1");
+        write(new File(notesDir, ShardedNoteStore.MANIFEST_FILE + ".tmp"), "garbage");
+        write(new File(notesDir, "7.txt"), "text of note 7");
+
+        store = new ShardedNoteStore(dir);
+        assertNotes(3, store.load(true));
+        // the first write of a run deletes the files left behind
+        apply(store, NoteMutation.insert(3, note(3)));
+        assertFalse(new File(notesDir, "1.txt.tmp").exists());
+        assertFalse(new File(notesDir, "7.txt").exists());
+        assertNotes(4, new ShardedNoteStore(dir).load(true));
+    }
+
+    @Test
+    public void deletedNoteLosesItsText() throws IOException {
+        ShardedNoteStore store = new ShardedNoteStore(dir);
+        writeNotes(store, 3);
+        apply(store, NoteMutation.delete(1));
+
+        assertFalse(textFile(1).exists());
+        assertEquals(2, new ShardedNoteStore(dir).load(true).size());
+    }
+
+    @Test
+    public void trashedNoteIsKeptUntilPurged() throws IOException {
+        ShardedNoteStore store = new ShardedNoteStore(dir);
+        writeNotes(store, 3);
+        Note trashed = noteList.get(1);
+        apply(store, NoteMutation.trash(1, trashed));
+        assertTrue(textFile(1).exists());
+        // restored from its text file, as the repository does once the notes' texts were dropped
+        apply(store, NoteMutation.restore(0, Note.withoutText(trashed.getId(), trashed.getTitle(), trashed.getPreview(),
+                trashed.getDateCreated(), trashed.getDate())));
+
+        List<Note> loaded = new ShardedNoteStore(dir).load(true);
+        assertEquals(3, loaded.size());
+        assertEquals(trashed.getText(), loaded.get(0).getText());
+
+        apply(store, NoteMutation.trash(0, trashed));
+        apply(store, NoteMutation.purge());
+        assertFalse(textFile(1).exists());
+        assertEquals(2, new ShardedNoteStore(dir).load(true).size());
+    }
+
+    @Test
+    public void trashedNoteIsDroppedByTheNextRun() throws IOException {
+        ShardedNoteStore store = new ShardedNoteStore(dir);
+        writeNotes(store, 3);
+        apply(store, NoteMutation.trash(1, noteList.get(1)));
+
+        // the trash doesn't outlive the app, the next run deletes the text with its first write
+        store = new ShardedNoteStore(dir);
+        apply(store, NoteMutation.move(0, 1));
+        assertFalse(textFile(1).exists());
+    }
+
+    private static Note note(int i) {
+        return new Note(i, "text of note " + i, "note " + i, new Date(500 + i), new Date(1000 + i));
+    }
+
+    private File textFile(long id) {
+        return new File(notesDir, id + ".txt");
+    }
+
+    private void writeNotes(ShardedNoteStore store, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            apply(store, NoteMutation.insert(noteList.size(), note(i)));
+        }
+    }
+
+    private void apply(ShardedNoteStore store, NoteMutation mutation) throws IOException {
+        mutation.applyTo(noteList);
+        store.apply(Collections.singletonList(mutation), new ArrayList<>(noteList));
+    }
+
+    // checks that the list has the first count notes written by writeNotes
+    private static void assertNotes(int count, List<Note> loaded) {
+        assertEquals(count, loaded.size());
+        for (int i = 0; i < count; i++) {
+            Note expected = note(i);
+            assertEquals(expected.getId(), loaded.get(i).getId());
+            assertEquals(expected.getTitle(), loaded.get(i).getTitle());
+            assertEquals(expected.getText(), loaded.get(i).getText());
+            assertEquals(expected.getDateMillis(), loaded.get(i).getDateMillis());
+            assertEquals(expected.getDateCreatedMillis(), loaded.get(i).getDateCreatedMillis());
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.morchkovalski.notes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// changes the orders a note at a time and checks them against the list sorted from scratch
+public class SortIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private SortIndex index;
+    private final List<Note> noteList = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+        index = new SortIndex(dir);
+    }
+
+    @Test
+    public void notesAddedInOrderStayBalanced() {
+        // every note goes to the same end of the trees, which only stay balanced by rotating
+        for (int i = 0; i < 1000; i++) {
+            add(note(i, "title " + i, 1000 + i, 1000 + i));
+            assertTrue(index.isValid());
+        }
+        assertOrders();
+    }
+
+    @Test
+    public void randomChangesKeepTheOrders() {
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            int n = random.nextInt(400);
+            long created = random.nextInt(100);
+            if (random.nextInt(3) == 0) {
+                index.remove(n);
+                remove(n);
+            } else {
+                add(note(n, random.nextInt(4) == 0 ? "" : "title " + random.nextInt(50), created, created + random.nextInt(100)));
+            }
+            assertTrue(index.isValid());
+            if (i % 100 == 0) {
+                assertOrders();
+            }
+        }
+        assertOrders();
+    }
+
+    @Test
+    public void ordersDontChangeWithTheIndex() {
+        for (int i = 0; i < 50; i++) {
+            add(note(i, "title " + i, i, i));
+        }
+        List<Note> before = new ArrayList<>(index.get(SortIndex.ORDER_TITLE));
+        List<Note> view = index.get(SortIndex.ORDER_TITLE);
+        for (int i = 0; i < 50; i += 2) {
+            index.remove(i);
+        }
+        add(note(100, "a new note", 100, 100));
+        assertEquals(before, new ArrayList<>(view));
+    }
+
+    @Test
+    public void editedNoteKeepsItsCreationDate() {
+        add(note(1, "first", 1000, 1000));
+        add(note(2, "second", 2000, 2000));
+        // edited last, but created first
+        add(note(1, "first", 1000, 3000));
+
+        assertIds(SortIndex.ORDER_CREATED, 2, 1);
+        assertIds(SortIndex.ORDER_EDITED, 1, 2);
+    }
+
+    @Test
+    public void savedTitlesAreUsedForNotesWithoutContents() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            add(note(i, "title " + (char) ('a' + (i * 7) % 20), 1000 + i, 2000 + i));
+        }
+        index.save();
+
+        SortIndex loaded = new SortIndex(dir);
+        loaded.load();
+        List<Note> withoutContents = new ArrayList<>();
+        for (Note note : noteList) {
+            withoutContents.add(Note.withoutContents(note.getId(), note.getDateCreated(), note.getDate()));
+        }
+        // the titles are all saved, none have to be read
+        assertEquals(0, loaded.retain(withoutContents).size());
+        loaded.build(withoutContents, Collections.<Note>emptyList());
+
+        assertTrue(loaded.isValid());
+        for (int order = SortIndex.ORDER_EDITED; order <= SortIndex.ORDER_CREATED; order++) {
+            List<Note> expected = index.get(order);
+            List<Note> actual = loaded.get(order);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            }
+        }
+    }
+
+    @Test
+    public void changedNoteIsStale() throws IOException {
+        add(note(1, "title", 1000, 1000));
+        index.save();
+
+        SortIndex loaded = new SortIndex(dir);
+        loaded.load();
+        List<Note> changed = Collections.singletonList(Note.withoutContents(1, new Date(1000), new Date(5000)));
+        assertEquals(1, loaded.retain(changed).size());
+    }
+
+    private static Note note(long id, String title, long created, long edited) {
+        return new Note(id, "text", title, new Date(created), new Date(edited));
+    }
+
+    private void add(Note note) {
+        index.add(note);
+        remove(note.getId());
+        noteList.add(note);
+    }
+
+    private void remove(long id) {
+        for (int i = 0; i < noteList.size(); i++) {
+            if (noteList.get(i).getId() == id) {
+                noteList.remove(i);
+                return;
+            }
+        }
+    }
+
+    // checks every order against the list sorted the same way, reading the notes by position
+    private void assertOrders() {
+        assertOrder(SortIndex.ORDER_EDITED, new Comparator<Note>() {
+            @Override
+            public int compare(Note a, Note b) {
+                return a.getDateMillis() != b.getDateMillis() ? Long.compare(b.getDateMillis(), a.getDateMillis()) : Long.compare(a.getId(), b.getId());
+            }
+        });
+        assertOrder(SortIndex.ORDER_CREATED, new Comparator<Note>() {
+            @Override
+            public int compare(Note a, Note b) {
+                return a.getDateCreatedMillis() != b.getDateCreatedMillis() ? Long.compare(b.getDateCreatedMillis(), a.getDateCreatedMillis()) : Long.compare(a.getId(), b.getId());
+            }
+        });
+    }
+
+    private void assertOrder(int order, Comparator<Note> comparator) {
+        List<Note> expected = new ArrayList<>(noteList);
+        Collections.sort(expected, comparator);
+        List<Note> actual = index.get(order);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+        }
+    }
+
+    private void assertIds(int order, long... ids) {
+        List<Note> notes = index.get(order);
+        assertEquals(ids.length, notes.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], notes.get(i).getId());
+        }
+    }
+
+}
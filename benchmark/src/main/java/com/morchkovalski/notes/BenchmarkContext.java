@@ -0,0 +1,261 @@
+package com.morchkovalski.notes;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// the parts of a Context the storage layer uses, backed by a temporary directory, since there is no
+// Android runtime on the JVM
+public class BenchmarkContext extends ContextWrapper {
+
+    private final File filesDir;
+    private final Map<String, MemoryPreferences> preferences = new HashMap<>();
+
+    public BenchmarkContext() throws IOException {
+        super(null);
+        filesDir = File.createTempFile("notes-benchmark", "");
+        if (!filesDir.delete() || !filesDir.mkdir()) {
+            throw new IOException("can't create " + filesDir);
+        }
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        MemoryPreferences prefs = preferences.get(name);
+        if (prefs == null) {
+            prefs = new MemoryPreferences(new File(new File(filesDir, "shared_prefs"), name + ".xml"));
+            preferences.put(name, prefs);
+        }
+        return prefs;
+    }
+
+    // deletes everything written to the files directory
+    public void delete() {
+        delete(filesDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // SharedPreferences that keep the values in a map and, like Android's, write all of them to an
+    // XML file on every commit, so that the bytes PrefsNoteStore writes can be compared with the
+    // other stores
+    private static class MemoryPreferences implements SharedPreferences {
+
+        private final File file;
+        private final Map<String, Object> values = new HashMap<>();
+
+        MemoryPreferences(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+            return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defValue) {
+            return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(String key, long defValue) {
+            return values.containsKey(key) ? (Long) values.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized float getFloat(String key, float defValue) {
+            return values.containsKey(key) ? (Float) values.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean getBoolean(String key, boolean defValue) {
+            return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        // only the strings are written, the stores don't keep anything else in their preferences
+        private void write() throws IOException {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create " + dir);
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            try {
+                out.write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    if (entry.getValue() instanceof String) {
+                        out.write("    <string name=\"");
+                        writeEscaped(entry.getKey(), out);
+                        out.write("\">");
+                        writeEscaped((String) entry.getValue(), out);
+                        out.write("</string>\n");
+                    }
+                }
+                out.write("</map>\n");
+            } finally {
+                out.close();
+            }
+        }
+
+        private static void writeEscaped(String s, Writer out) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '&':
+                        out.write("&amp;");
+                        break;
+                    case '<':
+                        out.write("&lt;");
+                        break;
+                    case '>':
+                        out.write("&gt;");
+                        break;
+                    case '"':
+                        out.write("&quot;");
+                        break;
+                    default:
+                        out.write(c);
+                }
+            }
+        }
+
+        private class MemoryEditor implements Editor {
+
+            private final Map<String, Object> changes = new HashMap<>();
+            private final Set<String> removed = new HashSet<>();
+            private boolean clear = false;
+
+            @Override
+            public Editor putString(String key, String value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                changes.put(key, new HashSet<>(values));
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                removed.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                clear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemoryPreferences.this) {
+                    if (clear) {
+                        values.clear();
+                    }
+                    for (String key : removed) {
+                        values.remove(key);
+                    }
+                    values.putAll(changes);
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+
+}
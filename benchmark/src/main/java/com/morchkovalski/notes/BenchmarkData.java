@@ -0,0 +1,97 @@
+package com.morchkovalski.notes;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+// generated notes and the measurements the benchmarks share
+public final class BenchmarkData {
+
+    // lists with more text than this don't fit in the default heap. the default sizes all stay
+    // below it, larger ones passed with -p fail in their setup
+    public static final long MAX_TOTAL_LENGTH = 32L * 1024 * 1024;
+
+    private static final String[] WORDS = {
+            "the", "note", "list", "meeting", "tomorrow", "buy", "milk", "call", "back", "ideas",
+            "project", "draft", "remember", "to", "and", "of", "a", "weekend", "notes", "ünïcödé"
+    };
+    private static final String[] LOG_LINES = {
+            "I/NoteRepository: loaded %d notes in %d ms",
+            "D/OkHttp: --> GET https://api.example.com/v1/items?page=%d (%d-byte body)",
+            "W/System.err: java.io.IOException: timeout after %d ms (attempt %d)",
+            "E/AndroidRuntime: FATAL EXCEPTION: main Process: com.example, PID: %d %d",
+            "\tat android.os.Handler.dispatchMessage(Handler.java:%d) +%d"
+    };
+
+    private BenchmarkData() {
+    }
+
+    // parses a list size parameter, "<note count>x<body length>", into the note count and the body
+    // length. the benchmarks take both in one parameter so that their defaults can list only the
+    // combinations that fit in MAX_TOTAL_LENGTH, instead of every count with every length
+    public static int[] parseSize(String size) {
+        int x = size.indexOf('x');
+        if (x == -1) {
+            throw new IllegalArgumentException("bad size " + size + ", expected e.g. 1000x100");
+        }
+        int noteCount = Integer.parseInt(size.substring(0, x));
+        int bodyLength = Integer.parseInt(size.substring(x + 1));
+        if ((long) noteCount * bodyLength > MAX_TOTAL_LENGTH) {
+            throw new IllegalArgumentException("skipping " + noteCount + " notes of " + bodyLength
+                    + " chars, which is more than " + MAX_TOTAL_LENGTH + " chars of text");
+        }
+        return new int[] {noteCount, bodyLength};
+    }
+
+    // text of the specified length made of words and lines, like a typed note. the same seed always
+    // gives the same text
+    public static String text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    // text of the specified length made of timestamped log lines, like output pasted into a note
+    public static String logText(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length + 128);
+        long time = 1484000000000L;
+        while (text.length() < length) {
+            time += random.nextInt(5000);
+            text.append(String.format("2017-01-%02d %tT.%03d ", 10 + time / 86400000 % 20, time, time % 1000));
+            String line = LOG_LINES[random.nextInt(LOG_LINES.length)];
+            text.append(String.format(line, random.nextInt(10000), random.nextInt(1000)));
+            text.append('\n');
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    // a list of notes with texts of the specified length. the notes share a few texts between them,
+    // which none of the stores can tell, so that large lists don't need that much more memory
+    public static List<Note> notes(int count, int bodyLength) {
+        String[] texts = new String[Math.min(count, 8)];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = text(bodyLength, i);
+        }
+        List<Note> notes = new ArrayList<>(count);
+        long date = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            notes.add(new Note(i + 1, texts[i % texts.length], "Note " + i, new Date(date - i * 60000L)));
+        }
+        return notes;
+    }
+
+    // the number of bytes this process has written so far, or -1 where that isn't available
+    public static long bytesWritten() {
+        long[] io = NoteMetrics.readIo();
+        return io != null ? io[1] : -1;
+    }
+
+}
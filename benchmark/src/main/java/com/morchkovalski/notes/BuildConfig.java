@@ -0,0 +1,10 @@
+package com.morchkovalski.notes;
+
+// stands in for the class generated by the Android build, which the app's sources refer to. the
+// benchmarks pick their stores themselves (see NoteRepository(Context, String, NoteStore))
+public final class BuildConfig {
+
+    public static final boolean DEBUG = false;
+    public static final String NOTE_STORE = JournalNoteStore.NAME;
+
+}
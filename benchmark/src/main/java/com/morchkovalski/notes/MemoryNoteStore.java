@@ -0,0 +1,75 @@
+package com.morchkovalski.notes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// a store that only keeps the latest list in memory, so that the list benchmarks measure the
+// repository without the writes it queues in the background
+public class MemoryNoteStore implements NoteStore {
+
+    public static final String NAME = "memory";
+
+    private List<Note> noteList = null;
+
+    @Override
+    public synchronized boolean exists() {
+        return noteList != null;
+    }
+
+    @Override
+    public synchronized List<Note> load(boolean withText) throws IOException {
+        return noteList == null ? new ArrayList<Note>() : new ArrayList<>(noteList);
+    }
+
+    @Override
+    public List<Note> loadWithoutContents() throws IOException {
+        return load(true);
+    }
+
+    @Override
+    public synchronized List<Note> load(long[] ids, boolean withText) throws IOException {
+        Map<Long, Note> notes = new HashMap<>();
+        if (noteList != null) {
+            for (Note note : noteList) {
+                notes.put(note.getId(), note);
+            }
+        }
+        List<Note> loaded = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Note note = notes.get(id);
+            if (note != null) {
+                loaded.add(note);
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public String loadText(long id) throws IOException {
+        List<Note> loaded = load(new long[] { id }, true);
+        if (loaded.isEmpty()) {
+            throw new IOException("no note with id " + id);
+        }
+        return loaded.get(0).getText();
+    }
+
+    // the repository passes a copy of its list, which nothing modifies afterwards
+    @Override
+    public synchronized void apply(List<NoteMutation> mutations, List<Note> noteList) throws IOException {
+        this.noteList = noteList;
+    }
+
+    @Override
+    public synchronized void replaceAll(List<Note> noteList) throws IOException {
+        this.noteList = new ArrayList<>(noteList);
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        noteList = null;
+    }
+
+}
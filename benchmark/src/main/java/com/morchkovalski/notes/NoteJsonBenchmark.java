@@ -0,0 +1,59 @@
+package com.morchkovalski.notes;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+// converting a single note to and from JSON, which the prefs store does for every note on every
+// write and the journal for every changed one
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteJsonBenchmark {
+
+    @Param({"10", "1000", "100000", "500000"})
+    public int bodyLength;
+
+    private Note note;
+    private JSONObject json;
+
+    @Setup
+    public void setUp() throws JSONException {
+        note = new Note(1, BenchmarkData.text(bodyLength, 0), "Title", new Date());
+        json = note.toJSON();
+    }
+
+    // toString is included, since the stores always write the JSON as a string
+    @Benchmark
+    public String toJSON() throws JSONException {
+        return note.toJSON().toString();
+    }
+
+    @Benchmark
+    public Note fromJSON() throws JSONException {
+        return Note.fromJSON(json);
+    }
+
+    // the way the stores read a note, parsing included
+    @Benchmark
+    public Note parse() throws JSONException {
+        return Note.fromJSON(new JSONObject(json.toString()));
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.morchkovalski.notes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// the list operations behind the Note facade, as the UI thread sees them. the repository writes
+// the changes in the background; with the default memory store that costs next to nothing, pass
+// e.g. -p store=journal to include the writes of a real store running alongside
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteListBenchmark {
+
+    @Param({MemoryNoteStore.NAME})
+    public String store;
+
+    // note count x body length, see BenchmarkData.parseSize
+    @Param({"10x100", "10x10000", "1000x100", "1000x10000", "100000x100"})
+    public String size;
+
+    private int noteCount;
+    private BenchmarkContext context;
+    private NoteRepository repository;
+    private String[] texts;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] counts = BenchmarkData.parseSize(size);
+        noteCount = counts[0];
+        int bodyLength = counts[1];
+        context = new BenchmarkContext();
+        NoteStore noteStore = MemoryNoteStore.NAME.equals(store)
+                ? new MemoryNoteStore() : NoteRepository.createStore(context, store);
+        repository = new NoteRepository(context, store, noteStore);
+        repository.setAll(BenchmarkData.notes(noteCount, bodyLength));
+        repository.flush(true);
+        texts = new String[] {BenchmarkData.text(bodyLength, 100), BenchmarkData.text(bodyLength, 101)};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repository.close();
+        context.delete();
+    }
+
+    private int nextPosition() {
+        next = (next + 1) % noteCount;
+        return next;
+    }
+
+    // what Note.add does, paired with deleting the note so that the list keeps its size
+    @Benchmark
+    public void addAndDelete() throws IOException {
+        repository.insert(0, new Note());
+        repository.delete(0);
+    }
+
+    // inserting in the middle of the list, e.g. when a deleted note is put back
+    @Benchmark
+    public void insertAndDelete() throws IOException {
+        int position = noteCount / 2;
+        repository.insert(position, new Note(texts[0], "Inserted"));
+        repository.delete(position);
+    }
+
+    // saving an edited note
+    @Benchmark
+    public void replace() throws IOException {
+        int position = nextPosition();
+        Note note = repository.get(position);
+        repository.replace(position, note.edited(texts[position & 1], note.getTitle()));
+    }
+
+    // dragging a note from one end of the list to the other
+    @Benchmark
+    public void move() throws IOException {
+        repository.move(0, noteCount - 1);
+    }
+
+    @Benchmark
+    public Note get() throws IOException {
+        return repository.get(nextPosition());
+    }
+
+    @Benchmark
+    public int count() throws IOException {
+        return repository.count();
+    }
+
+}
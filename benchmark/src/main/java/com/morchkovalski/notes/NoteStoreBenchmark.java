@@ -0,0 +1,124 @@
+package com.morchkovalski.notes;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// reading and writing the stores directly, the work the repository does on its write thread and
+// when the app starts. sqlite needs the native Android libraries, so it can't be measured here
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteStoreBenchmark {
+
+    @Param({PrefsNoteStore.NAME, JournalNoteStore.NAME, MappedNoteStore.NAME, ShardedNoteStore.NAME})
+    public String store;
+
+    // note count x body length, see BenchmarkData.parseSize
+    @Param({"10x100", "10x10000", "10x300000", "1000x100", "1000x10000", "10000x100"})
+    public String size;
+
+    // the bytes written to files per saved change, reported next to the times. counted from the
+    // start to the end of every iteration, so the writes a store does on its own threads (e.g.
+    // compaction) are included. only available on Linux, 0 elsewhere
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WriteCounters {
+        public long bytesPerWrite;
+
+        private long startBytes;
+        private long writes;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            startBytes = BenchmarkData.bytesWritten();
+            writes = 0;
+            bytesPerWrite = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            long endBytes = BenchmarkData.bytesWritten();
+            if (startBytes != -1 && endBytes != -1 && writes > 0) {
+                bytesPerWrite = (endBytes - startBytes) / writes;
+            }
+        }
+    }
+
+    private int noteCount;
+    private BenchmarkContext context;
+    private NoteStore noteStore;
+    private List<Note> noteList;
+    private String[] texts;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] counts = BenchmarkData.parseSize(size);
+        noteCount = counts[0];
+        int bodyLength = counts[1];
+        context = new BenchmarkContext();
+        noteStore = NoteRepository.createStore(context, store);
+        noteList = BenchmarkData.notes(noteCount, bodyLength);
+        noteStore.replaceAll(noteList);
+        texts = new String[] {BenchmarkData.text(bodyLength, 100), BenchmarkData.text(bodyLength, 101)};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        noteStore.clear();
+        context.delete();
+    }
+
+    // saving an edited note, the most common write
+    @Benchmark
+    public void replace(WriteCounters counters) throws IOException {
+        next = (next + 1) % noteCount;
+        Note note = noteList.get(next).edited(texts[next & 1], "Edited");
+        // the stores only read the list, so it can be changed in place between the calls
+        noteList.set(next, note);
+        noteStore.apply(Collections.singletonList(NoteMutation.replace(next, note)), noteList);
+        counters.writes++;
+    }
+
+    // moving a note, which changes the order but none of the notes
+    @Benchmark
+    public void move(WriteCounters counters) throws IOException {
+        noteList.add(noteList.remove(0));
+        noteStore.apply(Collections.singletonList(NoteMutation.move(0, noteCount - 1)), noteList);
+        counters.writes++;
+    }
+
+    // reading the list for the note list screen when the app starts
+    @Benchmark
+    public List<Note> load() throws IOException {
+        return noteStore.load(false);
+    }
+
+    // reading the text of a note that is opened
+    @Benchmark
+    public String loadText() throws IOException {
+        next = (next + 1) % noteCount;
+        return noteStore.loadText(noteList.get(next).getId());
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.morchkovalski.notes;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// compressing and inflating a note text (see TextCompression), next to encoding and decoding it as
+// UTF-8, which is what the stores do with texts that aren't compressed. the size of the stored text
+// is reported with the times
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NoteTextBenchmark {
+
+    @Param({"2000", "10000", "100000", "500000"})
+    public int bodyLength;
+
+    // words: a typed note, log: pasted log output
+    @Param({"words", "log"})
+    public String content;
+
+    // the UTF-8 and the stored size of the text, in bytes and in percent of the UTF-8 size. set at
+    // the end of every iteration, since JMH zeroes the counters before it
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SizeCounters {
+        public long rawBytes;
+        public long storedBytes;
+        public long storedPercent;
+
+        @TearDown(Level.Iteration)
+        public void stop(NoteTextBenchmark benchmark) {
+            rawBytes = benchmark.raw.length;
+            storedBytes = benchmark.deflated != null ? benchmark.deflated.length : rawBytes;
+            storedPercent = storedBytes * 100 / rawBytes;
+        }
+    }
+
+    private String text;
+    private byte[] raw;
+    // null if the text is stored as it is
+    private byte[] deflated;
+
+    @Setup
+    public void setUp() throws IOException {
+        text = content.equals("log") ? BenchmarkData.logText(bodyLength, 0) : BenchmarkData.text(bodyLength, 0);
+        raw = text.getBytes("UTF-8");
+        deflated = TextCompression.compress(text);
+    }
+
+    @Benchmark
+    public byte[] compress(SizeCounters counters) {
+        return TextCompression.compress(text);
+    }
+
+    // reading the stored text back. a text that isn't compressed is stored as UTF-8, so that is
+    // decoded instead, as the stores do (the stored size in the counters tells which it was)
+    @Benchmark
+    public String decompress(SizeCounters counters) throws IOException {
+        return deflated != null ? TextCompression.decompress(deflated) : new String(raw, "UTF-8");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return text.getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public String decode() throws IOException {
+        return new String(raw, "UTF-8");
+    }
+
+}